@@ -31,6 +31,7 @@ import static com.neovisionaries.ws.client.WebSocketState.OPEN;
 import com.neovisionaries.ws.client.WebSocketFactory;
 import com.neovisionaries.ws.client.WebSocketAdapter;
 import com.neovisionaries.ws.client.WebSocketException;
+import com.neovisionaries.ws.client.WebSocketExtension;
 import com.neovisionaries.ws.client.WebSocketFrame;
 import com.codename1.io.Log;
 import java.net.URI;
@@ -40,6 +41,15 @@ import java.util.Map;
 
 public class WebSocketNativeImplImpl implements com.codename1.io.websocket.WebSocketNativeImpl {
 
+    // offers permessage-deflate in the handshake, messages are only 
+    // compressed if the server agrees to it
+    static boolean compression = true;
+
+    // larger messages are split into frames of this size so pings and 
+    // pongs aren't stuck behind an attachment, smaller messages queued 
+    // behind a large one are sent ahead of it
+    static int maxFrameSize = 16 * 1024;
+
     //WebSocketClient client;
     com.neovisionaries.ws.client.WebSocket client;
     int id;
@@ -85,6 +95,10 @@ public class WebSocketNativeImplImpl implements com.codename1.io.websocket.WebSo
 
         try {
             client = new WebSocketFactory().createSocket(url);
+            if (compression) {
+                client.addExtension(WebSocketExtension.PERMESSAGE_DEFLATE);
+            }
+            client.setMaxPayloadSize(maxFrameSize);
             client.addListener(new WebSocketAdapter() {
                 @Override
                 public void onConnected(com.neovisionaries.ws.client.WebSocket websocket, Map<String, List<String>> headers) {
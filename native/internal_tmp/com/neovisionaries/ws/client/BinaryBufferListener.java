@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.ws.client;
+
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Optional interface for a {@link WebSocketListener} that reads binary
+ * messages without a copy.
+ *
+ * <p>
+ * A listener that implements this interface gets binary messages through
+ * {@link #onBinaryMessage(WebSocket, ByteBuffer)} instead of {@link
+ * WebSocketListener#onBinaryMessage(WebSocket, byte[])}. Other listeners
+ * get a copy of the message as before.
+ * </p>
+ */
+public interface BinaryBufferListener
+{
+    /**
+     * Called when a binary message was received, with a read-only view
+     * of the buffer the message was reassembled in.
+     *
+     * <p>
+     * The buffer is reused for the next message, so the view is valid
+     * only until this method returns.
+     * </p>
+     *
+     * @param websocket
+     *         The web socket.
+     *
+     * @param binary
+     *         The binary message.
+     */
+    void onBinaryMessage(WebSocket websocket, ByteBuffer binary);
+}
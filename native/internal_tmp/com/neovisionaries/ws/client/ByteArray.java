@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.ws.client;
+
+
+
+
+/**
+ * A growable byte array which is reused from message to message.
+ *
+ * <p>
+ * Unlike {@code ByteArrayOutputStream}, it is not synchronized and its
+ * content can be read in place, so a message reassembled into it does not
+ * have to be copied again before it is handed to the listeners.
+ * </p>
+ */
+class ByteArray
+{
+    private static final int MIN_CAPACITY = 1024;
+    private byte[] mBytes;
+    private int mLength;
+
+
+    public ByteArray()
+    {
+        this(MIN_CAPACITY);
+    }
+
+
+    public ByteArray(int capacity)
+    {
+        mBytes = new byte[Math.max(capacity, 16)];
+    }
+
+
+    /**
+     * Get the backing array. Only the first {@link #length()} bytes
+     * are valid and the array may be replaced by the next append.
+     */
+    public byte[] get()
+    {
+        return mBytes;
+    }
+
+
+    public int length()
+    {
+        return mLength;
+    }
+
+
+    public void append(byte[] source)
+    {
+        if (source != null)
+        {
+            append(source, 0, source.length);
+        }
+    }
+
+
+    public void append(byte[] source, int offset, int length)
+    {
+        ensureCapacity(mLength + length);
+
+        System.arraycopy(source, offset, mBytes, mLength, length);
+        mLength += length;
+    }
+
+
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity <= mBytes.length)
+        {
+            return;
+        }
+
+        // OutOfMemoryError may happen when the message is too big.
+        byte[] bytes = new byte[Math.max(mBytes.length * 2, capacity)];
+        System.arraycopy(mBytes, 0, bytes, 0, mLength);
+        mBytes = bytes;
+    }
+
+
+    public boolean endsWith(byte[] tail)
+    {
+        if (mLength < tail.length)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < tail.length; ++i)
+        {
+            if (mBytes[mLength - tail.length + i] != tail[i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Drop the last {@code count} bytes.
+     */
+    public void shrink(int count)
+    {
+        mLength = Math.max(0, mLength - count);
+    }
+
+
+    /**
+     * Empty the array for the next message. The memory is kept unless
+     * it grew beyond {@code maxRetained} bytes for an unusually large
+     * message.
+     */
+    public void clear(int maxRetained)
+    {
+        mLength = 0;
+
+        if (maxRetained < mBytes.length)
+        {
+            mBytes = new byte[Math.max(maxRetained, 16)];
+        }
+    }
+
+
+    public byte[] toBytes()
+    {
+        byte[] bytes = new byte[mLength];
+        System.arraycopy(mBytes, 0, bytes, 0, mLength);
+        return bytes;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.ws.client;
+
+
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * A lock-free, unbounded, multi-producer single-consumer queue of frames.
+ *
+ * <p>
+ * Any thread may {@link #offer(WebSocketFrame) offer} frames. Only the
+ * writing thread may {@link #poll() poll} them. Offering is a single
+ * atomic exchange, so producers never block each other or the consumer
+ * and frames offered by the same thread keep their order.
+ * </p>
+ */
+class FrameQueue
+{
+    private static class Node
+    {
+        WebSocketFrame frame;
+        volatile Node next;
+
+
+        Node(WebSocketFrame frame)
+        {
+            this.frame = frame;
+        }
+    }
+
+
+    // The last node offered. Producers swap themselves in here.
+    private final AtomicReference<Node> mTail;
+
+    // A sentinel whose successor is the next frame to poll.
+    // Accessed only by the consumer.
+    private Node mHead;
+
+
+    public FrameQueue()
+    {
+        mHead = new Node(null);
+        mTail = new AtomicReference<Node>(mHead);
+    }
+
+
+    /**
+     * Add a frame to the end of the queue. This can be called from
+     * any thread.
+     */
+    public void offer(WebSocketFrame frame)
+    {
+        Node node = new Node(frame);
+
+        // Claim the tail, then link the previous tail to the node. Until
+        // the link is written the consumer sees the queue end at the
+        // previous node, which only delays this frame.
+        Node previous = mTail.getAndSet(node);
+        previous.next = node;
+    }
+
+
+    /**
+     * Remove the frame at the head of the queue. This must be called
+     * only from the consumer thread.
+     *
+     * @return
+     *         The frame or {@code null} if the queue is empty.
+     */
+    public WebSocketFrame poll()
+    {
+        Node next = mHead.next;
+
+        if (next == null)
+        {
+            return null;
+        }
+
+        WebSocketFrame frame = next.frame;
+
+        // The node becomes the new sentinel.
+        next.frame = null;
+        mHead = next;
+
+        return frame;
+    }
+
+
+    /**
+     * Check if the queue is empty. A frame whose offer is still in
+     * progress may not be seen yet.
+     */
+    public boolean isEmpty()
+    {
+        return mHead.next == null;
+    }
+}
@@ -131,6 +131,17 @@ class HandshakeBuilder
             mExtensions = new ArrayList<WebSocketExtension>();
         }
 
+        if (WebSocketExtension.PERMESSAGE_DEFLATE.equals(extension.getName()))
+        {
+            // Offered once, without parameters we could not honor.
+            if (containsExtension(extension.getName()))
+            {
+                return;
+            }
+
+            extension = PerMessageDeflateExtension.createOffer(extension);
+        }
+
         mExtensions.add(extension);
     }
 
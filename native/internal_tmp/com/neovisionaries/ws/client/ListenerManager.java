@@ -16,15 +16,22 @@
 package com.neovisionaries.ws.client;
 
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
 
 class ListenerManager
 {
+    private static final WebSocketListener[] NO_LISTENERS = new WebSocketListener[0];
     private final WebSocket mWebSocket;
-    private final List<WebSocketListener> mListeners = new ArrayList<WebSocketListener>();
+
+    // Copy-on-write. Listeners are added rarely and called for every
+    // frame, so callbacks iterate over the current array without a lock
+    // and adding a listener replaces the array.
+    private volatile WebSocketListener[] mListeners = NO_LISTENERS;
 
 
     public ListenerManager(WebSocket websocket)
@@ -33,9 +40,12 @@ class ListenerManager
     }
 
 
+    /**
+     * Get a snapshot of the listeners.
+     */
     public List<WebSocketListener> getListeners()
     {
-        return mListeners;
+        return new ArrayList<WebSocketListener>(Arrays.asList(mListeners));
     }
 
 
@@ -46,26 +56,26 @@ class ListenerManager
             return;
         }
 
-        synchronized (mListeners)
+        synchronized (this)
         {
-            mListeners.add(listener);
+            WebSocketListener[] current   = mListeners;
+            WebSocketListener[] listeners = Arrays.copyOf(current, current.length + 1);
+            listeners[current.length] = listener;
+            mListeners = listeners;
         }
     }
 
 
     public void callOnStateChanged(WebSocketState newState)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onStateChanged(mWebSocket, newState);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onStateChanged(mWebSocket, newState);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
@@ -73,17 +83,14 @@ class ListenerManager
 
     public void callOnConnected(Map<String, List<String>> headers)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onConnected(mWebSocket, headers);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onConnected(mWebSocket, headers);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
@@ -93,18 +100,15 @@ class ListenerManager
         WebSocketFrame serverCloseFrame, WebSocketFrame clientCloseFrame,
         boolean closedByServer)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onDisconnected(
+                    mWebSocket, serverCloseFrame, clientCloseFrame, closedByServer);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onDisconnected(
-                        mWebSocket, serverCloseFrame, clientCloseFrame, closedByServer);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
@@ -112,17 +116,14 @@ class ListenerManager
 
     public void callOnFrame(WebSocketFrame frame)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onFrame(mWebSocket, frame);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onFrame(mWebSocket, frame);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
@@ -130,17 +131,14 @@ class ListenerManager
 
     public void callOnContinuationFrame(WebSocketFrame frame)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onContinuationFrame(mWebSocket, frame);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onContinuationFrame(mWebSocket, frame);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
@@ -148,17 +146,14 @@ class ListenerManager
 
     public void callOnTextFrame(WebSocketFrame frame)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onTextFrame(mWebSocket, frame);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onTextFrame(mWebSocket, frame);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
@@ -166,17 +161,14 @@ class ListenerManager
 
     public void callOnBinaryFrame(WebSocketFrame frame)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onBinaryFrame(mWebSocket, frame);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onBinaryFrame(mWebSocket, frame);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
@@ -184,17 +176,14 @@ class ListenerManager
 
     public void callOnCloseFrame(WebSocketFrame frame)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onCloseFrame(mWebSocket, frame);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onCloseFrame(mWebSocket, frame);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
@@ -202,17 +191,14 @@ class ListenerManager
 
     public void callOnPingFrame(WebSocketFrame frame)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onPingFrame(mWebSocket, frame);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onPingFrame(mWebSocket, frame);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
@@ -220,17 +206,14 @@ class ListenerManager
 
     public void callOnPongFrame(WebSocketFrame frame)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onPongFrame(mWebSocket, frame);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onPongFrame(mWebSocket, frame);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
@@ -238,35 +221,45 @@ class ListenerManager
 
     public void callOnTextMessage(String message)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onTextMessage(mWebSocket, message);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onTextMessage(mWebSocket, message);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
 
 
-    public void callOnBinaryMessage(byte[] message)
+    public void callOnBinaryMessage(ByteBuffer message)
     {
-        synchronized (mListeners)
+        // Listeners that only take byte arrays share a single copy.
+        byte[] copy = null;
+
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
             {
-                try
+                if (listener instanceof BinaryBufferListener)
                 {
-                    listener.onBinaryMessage(mWebSocket, message);
+                    // Each listener gets its own position and limit.
+                    ((BinaryBufferListener)listener).onBinaryMessage(mWebSocket, message.duplicate());
+                    continue;
                 }
-                catch (Throwable t)
+
+                if (copy == null)
                 {
+                    copy = new byte[message.remaining()];
+                    message.duplicate().get(copy);
                 }
+
+                listener.onBinaryMessage(mWebSocket, copy);
+            }
+            catch (Throwable t)
+            {
             }
         }
     }
@@ -274,17 +267,14 @@ class ListenerManager
 
     public void callOnFrameSent(WebSocketFrame frame)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onFrameSent(mWebSocket, frame);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onFrameSent(mWebSocket, frame);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
@@ -292,17 +282,14 @@ class ListenerManager
 
     public void callOnFrameUnsent(WebSocketFrame frame)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onFrameUnsent(mWebSocket, frame);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onFrameUnsent(mWebSocket, frame);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
@@ -310,17 +297,14 @@ class ListenerManager
 
     public void callOnError(WebSocketException cause)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onError(mWebSocket, cause);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onError(mWebSocket, cause);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
@@ -328,17 +312,14 @@ class ListenerManager
 
     public void callOnFrameError(WebSocketException cause, WebSocketFrame frame)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onFrameError(mWebSocket, cause, frame);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onFrameError(mWebSocket, cause, frame);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
@@ -346,17 +327,14 @@ class ListenerManager
 
     public void callOnMessageError(WebSocketException cause, List<WebSocketFrame> frames)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onMessageError(mWebSocket, cause, frames);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onMessageError(mWebSocket, cause, frames);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
@@ -364,17 +342,14 @@ class ListenerManager
 
     public void callOnTextMessageError(WebSocketException cause, byte[] data)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onTextMessageError(mWebSocket, cause, data);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onTextMessageError(mWebSocket, cause, data);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
@@ -382,17 +357,14 @@ class ListenerManager
 
     public void callOnSendError(WebSocketException cause, WebSocketFrame frame)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onSendError(mWebSocket, cause, frame);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onSendError(mWebSocket, cause, frame);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
@@ -400,17 +372,14 @@ class ListenerManager
 
     public void callOnUnexpectedError(WebSocketException cause)
     {
-        synchronized (mListeners)
+        for (WebSocketListener listener : mListeners)
         {
-            for (WebSocketListener listener : mListeners)
+            try
+            {
+                listener.onUnexpectedError(mWebSocket, cause);
+            }
+            catch (Throwable t)
             {
-                try
-                {
-                    listener.onUnexpectedError(mWebSocket, cause);
-                }
-                catch (Throwable t)
-                {
-                }
             }
         }
     }
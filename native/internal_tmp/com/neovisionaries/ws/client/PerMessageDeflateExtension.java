@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.ws.client;
+
+
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Per-Message Deflate Extension (<a href="https://tools.ietf.org/html/rfc7692"
+ * >RFC 7692</a>).
+ *
+ * <p>
+ * An instance is created for the parameters the server agreed to in the
+ * opening handshake. Messages are compressed by the writing thread and
+ * decompressed by the reading thread at the same time. The deflater and
+ * its buffers are used only by the writing thread, the inflater and its
+ * buffer only by the reading thread, so the two paths share no state.
+ * </p>
+ *
+ * <p>
+ * {@code java.util.zip.Deflater} cannot limit the size of its sliding
+ * window, so {@code client_max_window_bits} is never offered and a server
+ * response that limits the client window below the default is rejected.
+ * The inflater accepts any window size the server uses.
+ * </p>
+ */
+class PerMessageDeflateExtension extends WebSocketExtension
+{
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    private static final String SERVER_MAX_WINDOW_BITS     = "server_max_window_bits";
+    private static final String CLIENT_MAX_WINDOW_BITS     = "client_max_window_bits";
+    private static final int DEFAULT_WINDOW_BITS = 15;
+    private static final int MIN_WINDOW_BITS     = 8;
+    private static final int BUFFER_SIZE         = 1024;
+    private static final int MAX_RETAINED        = 64 * 1024;
+
+
+    /**
+     * The four bytes which terminate the output of a sync flush.
+     * RFC 7692, 7.2.1 requires them to be removed from a compressed
+     * message and 7.2.2 requires them to be appended before inflating.
+     */
+    private static final byte[] SYNC_TAIL = { 0x00, 0x00, (byte)0xFF, (byte)0xFF };
+
+
+    private boolean mServerNoContextTakeover;
+    private boolean mClientNoContextTakeover;
+    private Deflater mDeflater;
+    private Inflater mInflater;
+    // Used only by the writing thread.
+    private final byte[] mDeflateBuffer = new byte[BUFFER_SIZE];
+    private final ByteArray mCompressed = new ByteArray();
+
+    // Used only by the reading thread.
+    private final byte[] mInflateBuffer = new byte[BUFFER_SIZE];
+
+
+    public PerMessageDeflateExtension()
+    {
+        super(PERMESSAGE_DEFLATE);
+    }
+
+
+    /**
+     * Prepare an offer to be sent in the opening handshake.
+     * Parameters which this implementation cannot honor are dropped.
+     *
+     * @param offer
+     *         The extension as added by the application.
+     *
+     * @return
+     *         The extension to send in {@code Sec-WebSocket-Extensions}.
+     */
+    static WebSocketExtension createOffer(WebSocketExtension offer)
+    {
+        WebSocketExtension extension = new WebSocketExtension(PERMESSAGE_DEFLATE);
+
+        for (Map.Entry<String, String> entry : offer.getParameters().entrySet())
+        {
+            // The deflater always uses a window of 2^15 bytes.
+            if (CLIENT_MAX_WINDOW_BITS.equals(entry.getKey()))
+            {
+                continue;
+            }
+
+            extension.setParameter(entry.getKey(), entry.getValue());
+        }
+
+        return extension;
+    }
+
+
+    /**
+     * Create an instance from the extension the server agreed to.
+     *
+     * @param response
+     *         The {@code permessage-deflate} element of the
+     *         {@code Sec-WebSocket-Extensions} header in the response.
+     *
+     * @throws WebSocketException
+     *         The response contains a parameter which is unknown,
+     *         has an invalid value or cannot be honored.
+     */
+    static PerMessageDeflateExtension createFromResponse(WebSocketExtension response) throws WebSocketException
+    {
+        PerMessageDeflateExtension extension = new PerMessageDeflateExtension();
+
+        for (Map.Entry<String, String> entry : response.getParameters().entrySet())
+        {
+            String key   = entry.getKey();
+            String value = entry.getValue();
+
+            extension.setParameter(key, value);
+
+            if (SERVER_NO_CONTEXT_TAKEOVER.equals(key))
+            {
+                extension.mServerNoContextTakeover = true;
+            }
+            else if (CLIENT_NO_CONTEXT_TAKEOVER.equals(key))
+            {
+                extension.mClientNoContextTakeover = true;
+            }
+            else if (SERVER_MAX_WINDOW_BITS.equals(key))
+            {
+                // The inflater handles any window size, only validate it.
+                windowBits(key, value);
+            }
+            else if (CLIENT_MAX_WINDOW_BITS.equals(key))
+            {
+                // RFC 7692, 7.1.2.2. The server must not limit the client
+                // window unless the client offered it, which we never do.
+                if (windowBits(key, value) < DEFAULT_WINDOW_BITS)
+                {
+                    throw new WebSocketException(
+                        WebSocketError.PERMESSAGE_DEFLATE_UNSUPPORTED_PARAMETER,
+                        "The server limited the client window which is not supported: " + value);
+                }
+            }
+            else
+            {
+                throw new WebSocketException(
+                    WebSocketError.PERMESSAGE_DEFLATE_UNSUPPORTED_PARAMETER,
+                    "An unsupported permessage-deflate parameter was included in the response: " + key);
+            }
+        }
+
+        return extension;
+    }
+
+
+    private static int windowBits(String key, String value) throws WebSocketException
+    {
+        if (value == null)
+        {
+            return DEFAULT_WINDOW_BITS;
+        }
+
+        int bits;
+
+        try
+        {
+            bits = Integer.parseInt(value);
+        }
+        catch (NumberFormatException e)
+        {
+            bits = -1;
+        }
+
+        if (bits < MIN_WINDOW_BITS || DEFAULT_WINDOW_BITS < bits)
+        {
+            throw new WebSocketException(
+                WebSocketError.PERMESSAGE_DEFLATE_UNSUPPORTED_PARAMETER,
+                "The value of " + key + " is invalid: " + value);
+        }
+
+        return bits;
+    }
+
+
+    /**
+     * Compress the payload of a message. This is called only from the
+     * writing thread.
+     *
+     * @param payload
+     *         The whole payload of a message. Must not be empty.
+     *
+     * @return
+     *         The compressed payload without the trailing sync bytes.
+     */
+    byte[] compress(byte[] payload)
+    {
+        if (mDeflater == null)
+        {
+            // Raw deflate, without the zlib header and checksum.
+            mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+
+        ByteArray output = mCompressed;
+
+        mDeflater.setInput(payload);
+
+        while (true)
+        {
+            int count = mDeflater.deflate(mDeflateBuffer, 0, mDeflateBuffer.length, Deflater.SYNC_FLUSH);
+
+            output.append(mDeflateBuffer, 0, count);
+
+            // The flush is complete when the buffer was not filled up.
+            if (count < mDeflateBuffer.length)
+            {
+                break;
+            }
+        }
+
+        if (mClientNoContextTakeover)
+        {
+            mDeflater.reset();
+        }
+
+        // Remove the 0x00 0x00 0xFF 0xFF which the sync flush appended.
+        if (output.endsWith(SYNC_TAIL))
+        {
+            output.shrink(SYNC_TAIL.length);
+        }
+
+        byte[] compressed = output.toBytes();
+
+        output.clear(MAX_RETAINED);
+
+        return compressed;
+    }
+
+
+    /**
+     * Decompress the payload of a message. This is called only from the
+     * reading thread.
+     *
+     * @param payload
+     *         The whole compressed payload of a message.
+     *
+     * @param offset
+     *         The offset of the payload in the array.
+     *
+     * @param length
+     *         The length of the payload.
+     *
+     * @param output
+     *         Receives the decompressed payload.
+     *
+     * @throws WebSocketException
+     *         The payload is not valid deflate data.
+     */
+    void decompress(byte[] payload, int offset, int length, ByteArray output) throws WebSocketException
+    {
+        if (mInflater == null)
+        {
+            mInflater = new Inflater(true);
+        }
+
+        try
+        {
+            if (payload != null && length != 0)
+            {
+                inflate(payload, offset, length, output);
+            }
+
+            inflate(SYNC_TAIL, 0, SYNC_TAIL.length, output);
+        }
+        catch (DataFormatException e)
+        {
+            throw new WebSocketException(
+                WebSocketError.DECOMPRESSION_ERROR,
+                "Failed to decompress the message: " + e.getMessage(), e);
+        }
+
+        // A final block (BFINAL) ends the stream, the next message
+        // starts a new one.
+        if (mServerNoContextTakeover || mInflater.finished())
+        {
+            mInflater.reset();
+        }
+    }
+
+
+    private void inflate(byte[] input, int offset, int length, ByteArray output) throws DataFormatException
+    {
+        mInflater.setInput(input, offset, length);
+
+        while (true)
+        {
+            int count = mInflater.inflate(mInflateBuffer);
+
+            output.append(mInflateBuffer, 0, count);
+
+            if (count == 0 && (mInflater.needsInput() ||
+                    mInflater.finished() || mInflater.needsDictionary()))
+            {
+                break;
+            }
+        }
+    }
+
+
+    /**
+     * Release the native resources held by the deflater and the inflater.
+     * This is called after the reading thread and the writing thread
+     * have finished.
+     */
+    void close()
+    {
+        if (mDeflater != null)
+        {
+            mDeflater.end();
+        }
+
+        if (mInflater != null)
+        {
+            mInflater.end();
+        }
+    }
+}
@@ -16,24 +16,30 @@
 package com.neovisionaries.ws.client;
 
 
-import java.util.Timer;
 import java.util.TimerTask;
 
 
+/**
+ * Sends a frame periodically on the shared {@link Scheduler}.
+ *
+ * <p>
+ * The frame is only sent when no frame was sent or received during the
+ * last interval. While messages are flowing they already keep the
+ * connection alive, so the task just moves its next run to one interval
+ * after the latest frame.
+ * </p>
+ */
 abstract class PeriodicalFrameSender
 {
     private final WebSocket mWebSocket;
-    private final String mTimerName;
-    private Timer mTimer;
-    private boolean mScheduled;
+    private TimerTask mTask;
     private long mInterval;
     private long mCount;
 
 
-    public PeriodicalFrameSender(WebSocket webSocket, String timerName)
+    public PeriodicalFrameSender(WebSocket webSocket)
     {
         mWebSocket = webSocket;
-        mTimerName = timerName;
     }
 
 
@@ -47,13 +53,8 @@ abstract class PeriodicalFrameSender
     {
         synchronized (this)
         {
-            if (mTimer == null)
-            {
-                return;
-            }
-
-            mScheduled = false;
-            mTimer.cancel();
+            Scheduler.cancel(mTask);
+            mTask = null;
         }
     }
 
@@ -81,6 +82,9 @@ abstract class PeriodicalFrameSender
 
         if (interval == 0)
         {
+            // Don't keep a task which would only find out it has
+            // nothing to do.
+            stop();
             return;
         }
 
@@ -91,27 +95,23 @@ abstract class PeriodicalFrameSender
 
         synchronized (this)
         {
-            if (mTimer == null)
+            if (mTask == null)
             {
-                mTimer = new Timer(mTimerName);
-            }
-
-            if (mScheduled == false)
-            {
-                mScheduled = true;
-                mTimer.schedule(new Task(), interval);
+                schedule(interval);
             }
         }
     }
 
 
-    private final class Task extends TimerTask
+    private void schedule(long delay)
     {
-        @Override
-        public void run()
-        {
-            doTask();
-        }
+        mTask = Scheduler.schedule(mWebSocket, new Runnable() {
+            @Override
+            public void run()
+            {
+                doTask();
+            }
+        }, delay);
     }
 
 
@@ -119,14 +119,25 @@ abstract class PeriodicalFrameSender
     {
         synchronized (this)
         {
+            mTask = null;
+
             if (mInterval == 0 || mWebSocket.isOpen() == false)
             {
-                mScheduled = false;
-
                 // Not schedule a new task.
                 return;
             }
 
+            long idle = System.currentTimeMillis() - mWebSocket.getLastActivityTime();
+
+            // If a frame was sent or received during the interval.
+            if (0 <= idle && idle < mInterval)
+            {
+                // Skip this time and check again one interval after
+                // the latest frame.
+                schedule(mInterval - idle);
+                return;
+            }
+
             // Increment the counter.
             mCount = Math.max(mCount + 1, 1);
 
@@ -134,7 +145,7 @@ abstract class PeriodicalFrameSender
             mWebSocket.sendFrame(createFrame(mCount));
 
             // Schedule a new task.
-            mTimer.schedule(new Task(), mInterval);
+            schedule(mInterval);
         }
     }
 
@@ -18,12 +18,9 @@ package com.neovisionaries.ws.client;
 
 class PingSender extends PeriodicalFrameSender
 {
-    private static final String TIMER_NAME = "PingSender";
-
-
     public PingSender(WebSocket webSocket)
     {
-        super(webSocket, TIMER_NAME);
+        super(webSocket);
     }
 
 
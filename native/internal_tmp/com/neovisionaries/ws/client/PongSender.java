@@ -18,12 +18,9 @@ package com.neovisionaries.ws.client;
 
 class PongSender extends PeriodicalFrameSender
 {
-    private static final String TIMER_NAME = "PongSender";
-
-
     public PongSender(WebSocket webSocket)
     {
-        super(webSocket, TIMER_NAME);
+        super(webSocket);
     }
 
 
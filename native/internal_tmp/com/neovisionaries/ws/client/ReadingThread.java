@@ -24,12 +24,11 @@ import static com.neovisionaries.ws.client.WebSocketOpcode.PONG;
 import static com.neovisionaries.ws.client.WebSocketOpcode.TEXT;
 import static com.neovisionaries.ws.client.WebSocketState.CLOSED;
 import static com.neovisionaries.ws.client.WebSocketState.CLOSING;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
 import java.util.TimerTask;
 import com.neovisionaries.ws.client.StateManager.CloseInitiator;
 
@@ -37,11 +36,18 @@ import com.neovisionaries.ws.client.StateManager.CloseInitiator;
 class ReadingThread extends Thread
 {
     private static final long INTERRUPTION_TIMER_DELAY = 60 * 1000;
+    private static final int MAX_RETAINED = 64 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
     private final WebSocket mWebSocket;
     private boolean mStopRequested;
     private WebSocketFrame mCloseFrame;
     private List<WebSocketFrame> mContinuation = new ArrayList<WebSocketFrame>();
 
+    // Fragments are reassembled and compressed messages are inflated into
+    // these buffers, which are reused from message to message.
+    private final ByteArray mMessage = new ByteArray();
+    private final ByteArray mInflated = new ByteArray();
+
 
     public ReadingThread(WebSocket websocket)
     {
@@ -197,13 +203,14 @@ class ReadingThread extends Thread
      * Call {@link WebSocketListener#onTextMessage(WebSocket, String)
      * onTextMessage} method of the listeners.
      */
-    private void callOnTextMessage(byte[] data)
+    private void callOnTextMessage(byte[] data, int length)
     {
         try
         {
-            // Interpret the byte array as a string.
+            // Interpret the bytes as a string, straight from the buffer
+            // the message was assembled in.
             // OutOfMemoryError may happen when the size of data is too big.
-            String message = Misc.toStringUTF8(data);
+            String message = Misc.toStringUTF8(data, 0, length);
 
             // Call onTextMessage() method of the listeners.
             callOnTextMessage(message);
@@ -217,7 +224,7 @@ class ReadingThread extends Thread
 
             // Notify the listeners that text message construction failed.
             callOnError(wse);
-            callOnTextMessageError(wse, data);
+            callOnTextMessageError(wse, copyOf(data, length));
         }
     }
 
@@ -233,15 +240,32 @@ class ReadingThread extends Thread
 
 
     /**
-     * Call {@link WebSocketListener#onBinaryMessage(WebSocket, String)
-     * onBinaryMessage} method of the listeners.
+     * Call {@code onBinaryMessage} method of the listeners, those that
+     * implement {@link BinaryBufferListener} get a read-only view of the
+     * message and the others a copy.
      */
-    private void callOnBinaryMessage(byte[] message)
+    private void callOnBinaryMessage(byte[] data, int length)
     {
+        ByteBuffer message = (data == null) ? EMPTY :
+            ByteBuffer.wrap(data, 0, length).asReadOnlyBuffer();
+
         mWebSocket.getListenerManager().callOnBinaryMessage(message);
     }
 
 
+    private static byte[] copyOf(byte[] data, int length)
+    {
+        if (data == null)
+        {
+            return null;
+        }
+
+        byte[] copy = new byte[length];
+        System.arraycopy(data, 0, copy, 0, length);
+        return copy;
+    }
+
+
     /**
      * Call {@link WebSocketListener#onError(WebSocket, WebSocketException)
      * onError} method of the listeners.
@@ -293,6 +317,9 @@ class ReadingThread extends Thread
             // Receive a frame from the server.
             frame = mWebSocket.getInput().readFrame();
 
+            // Let the ping and pong senders know the connection is busy.
+            mWebSocket.updateLastActivityTime();
+
             // Verify the frame. If invalid, WebSocketException is thrown.
             verifyFrame(frame);
 
@@ -377,8 +404,14 @@ class ReadingThread extends Thread
         //
         // The specification requires that these bits "be 0 unless an extension
         // is negotiated that defines meanings for non-zero values".
+        //
+        // permessage-deflate uses RSV1 on the first frame of a compressed
+        // message (RFC 7692, 6.).
+
+        boolean rsv1Allowed = mWebSocket.getPerMessageDeflate() != null &&
+            (frame.isTextFrame() || frame.isBinaryFrame());
 
-        if (frame.getRsv1() || frame.getRsv2() || frame.getRsv3())
+        if ((frame.getRsv1() && rsv1Allowed == false) || frame.getRsv2() || frame.getRsv3())
         {
             String message = String.format(
                 "At least one of the reserved bits of a frame is set: RSV1=%s,RSV2=%s,RSV3=%s",
@@ -630,79 +663,57 @@ class ReadingThread extends Thread
         // Append the continuation frame to the existing continuation sequence.
         mContinuation.add(frame);
 
-        // If the frame is not the last one for the continuation.
-        if (frame.getFin() == false)
-        {
-            // Keep reading.
-            return true;
-        }
-
-        // Concatenate payloads of the frames.
-        byte[] data = concatenatePayloads(mContinuation);
-
-        // If the concatenation failed.
-        if (data == null)
+        // Append the payload to the message being reassembled.
+        if (appendPayload(frame) == false)
         {
             // Stop reading.
             return false;
         }
 
-        // If the continuation forms a text message.
-        if (mContinuation.get(0).isTextFrame())
-        {
-            // Notify the listeners that a text message was received.
-            callOnTextMessage(data);
-        }
-        else
+        // If the frame is not the last one for the continuation.
+        if (frame.getFin() == false)
         {
-            // Notify the listeners that a binary message was received.
-            callOnBinaryMessage(data);
+            // Keep reading.
+            return true;
         }
 
+        // The first frame tells the type of the message and
+        // whether it is compressed.
+        boolean keepReading = handleMessage(
+            mContinuation.get(0), mContinuation, mMessage.get(), mMessage.length());
+
         // Clear the continuation.
         mContinuation.clear();
+        mMessage.clear(MAX_RETAINED);
 
-        // Keep reading.
-        return true;
+        return keepReading;
     }
 
 
-    private byte[] concatenatePayloads(List<WebSocketFrame> frames)
+    /**
+     * Append the payload of a fragment to {@code mMessage}. Unlike
+     * concatenating the payloads when the last fragment arrives, this
+     * copies each payload once into a buffer that is reused.
+     */
+    private boolean appendPayload(WebSocketFrame frame)
     {
-        Throwable cause;
-
         try
         {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-            // For each web socket frame.
-            for (WebSocketFrame frame : frames)
-            {
-                // Get the payload of the frame.
-                byte[] payload = frame.getPayload();
+            mMessage.append(frame.getPayload());
 
-                // If the payload is null or empty.
-                if (payload == null || payload.length == 0)
-                {
-                    continue;
-                }
-
-                // Append the payload.
-                baos.write(payload);
-            }
-
-            // Return the concatenated byte array.
-            return baos.toByteArray();
-        }
-        catch (IOException e)
-        {
-            cause = e;
+            return true;
         }
         catch (OutOfMemoryError e)
         {
-            cause = e;
+            onMessageConstructionError(e, mContinuation);
+
+            return false;
         }
+    }
 
+
+    private void onMessageConstructionError(Throwable cause, List<WebSocketFrame> frames)
+    {
         // Create a WebSocketException which has a cause.
         WebSocketException wse = new WebSocketException(
             WebSocketError.MESSAGE_CONSTRUCTION_ERROR,
@@ -719,32 +730,125 @@ class ReadingThread extends Thread
 
         // Send the close frame.
         mWebSocket.sendFrame(frame);
+    }
 
-        // Failed to construct a message.
-        return null;
+
+    /**
+     * Deliver a complete message to the listeners.
+     *
+     * @param first
+     *         The first frame of the message.
+     *
+     * @param frames
+     *         The frames of the message for error reports, or
+     *         {@code null} if the message is the single frame
+     *         {@code first}.
+     *
+     * @param data
+     *         The payload of the message, {@code null} if it is empty.
+     *
+     * @param length
+     *         The length of the payload in {@code data}.
+     *
+     * @return
+     *         {@code true} to keep reading.
+     */
+    private boolean handleMessage(
+        WebSocketFrame first, List<WebSocketFrame> frames, byte[] data, int length)
+    {
+        // If the message was compressed by permessage-deflate.
+        if (first.getRsv1())
+        {
+            if (decompress(data, length, frames != null ? frames : framesOf(first)) == false)
+            {
+                // Stop reading.
+                return false;
+            }
+
+            data   = mInflated.get();
+            length = mInflated.length();
+        }
+
+        if (first.isTextFrame())
+        {
+            // Notify the listeners that a text message was received.
+            callOnTextMessage(data, length);
+        }
+        else
+        {
+            // Notify the listeners that a binary message was received.
+            callOnBinaryMessage(data, length);
+        }
+
+        if (first.getRsv1())
+        {
+            mInflated.clear(MAX_RETAINED);
+        }
+
+        // Keep reading.
+        return true;
     }
 
 
-    private boolean handleTextFrame(WebSocketFrame frame)
+    private static List<WebSocketFrame> framesOf(WebSocketFrame frame)
     {
-        // Notify the listeners that a text frame was received.
-        callOnTextFrame(frame);
+        List<WebSocketFrame> frames = new ArrayList<WebSocketFrame>(1);
+        frames.add(frame);
 
-        // If the frame indicates the start of fragmentation.
-        if (frame.getFin() == false)
+        return frames;
+    }
+
+
+    /**
+     * Decompress a message compressed by permessage-deflate into
+     * {@code mInflated}.
+     *
+     * @return
+     *         {@code false} if the payload was broken, in which case
+     *         a close frame has been sent.
+     */
+    private boolean decompress(byte[] data, int length, List<WebSocketFrame> frames)
+    {
+        try
         {
-            // Start a continuation sequence.
-            mContinuation.add(frame);
+            mWebSocket.getPerMessageDeflate().decompress(data, 0, length, mInflated);
 
-            // Keep reading.
             return true;
         }
+        catch (WebSocketException wse)
+        {
+            mInflated.clear(MAX_RETAINED);
+
+            // Notify the listeners that message construction failed.
+            callOnError(wse);
+            callOnMessageError(wse, frames);
+
+            // The compression contexts are out of sync from now on.
+            WebSocketFrame frame = WebSocketFrame
+                .createCloseFrame(WebSocketCloseCode.UNCONFORMED, wse.getMessage());
+
+            // Send the close frame.
+            mWebSocket.sendFrame(frame);
+
+            return false;
+        }
+        catch (OutOfMemoryError e)
+        {
+            mInflated.clear(MAX_RETAINED);
 
-        // Notify the listeners that a text message was received.
-        callOnTextMessage(frame.getPayload());
+            onMessageConstructionError(e, frames);
 
-        // Keep reading.
-        return true;
+            return false;
+        }
+    }
+
+
+    private boolean handleTextFrame(WebSocketFrame frame)
+    {
+        // Notify the listeners that a text frame was received.
+        callOnTextFrame(frame);
+
+        return handleDataFrame(frame);
     }
 
 
@@ -753,21 +857,25 @@ class ReadingThread extends Thread
         // Notify the listeners that a binary frame was received.
         callOnBinaryFrame(frame);
 
+        return handleDataFrame(frame);
+    }
+
+
+    private boolean handleDataFrame(WebSocketFrame frame)
+    {
         // If the frame indicates the start of fragmentation.
         if (frame.getFin() == false)
         {
             // Start a continuation sequence.
             mContinuation.add(frame);
 
-            // Keep reading.
-            return true;
+            return appendPayload(frame);
         }
 
-        // Notify the listeners that a binary message was received.
-        callOnBinaryMessage(frame.getPayload());
+        // The payload of a single frame message is used as it is.
+        byte[] payload = frame.getPayload();
 
-        // Keep reading.
-        return true;
+        return handleMessage(frame, null, payload, (payload == null) ? 0 : payload.length);
     }
 
 
@@ -866,8 +974,8 @@ class ReadingThread extends Thread
 
         WebSocketFrame frame = null;
 
-        // Schedule a timer to prevent from waiting forever.
-        Timer timer = scheduleInterruptionTimer();
+        // Schedule a task to prevent from waiting forever.
+        TimerTask timer = scheduleInterruptionTimer();
 
         while (true)
         {
@@ -891,16 +999,14 @@ class ReadingThread extends Thread
             }
         }
 
-        // Cancel the timer for the case where a close frame was received.
-        timer.cancel();
+        // Cancel the task for the case where a close frame was received.
+        Scheduler.cancel(timer);
     }
 
 
-    private Timer scheduleInterruptionTimer()
+    private TimerTask scheduleInterruptionTimer()
     {
-        Timer timer = new Timer("ReadingThreadInterruptionTimer");
-
-        timer.schedule(new TimerTask() {
+        return Scheduler.schedule(mWebSocket, new Runnable() {
             @Override
             public void run()
             {
@@ -911,8 +1017,6 @@ class ReadingThread extends Thread
                 }
             }
         }, INTERRUPTION_TIMER_DELAY);
-
-        return timer;
     }
 
 
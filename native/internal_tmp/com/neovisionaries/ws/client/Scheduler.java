@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 Neo Visionaries Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neovisionaries.ws.client;
+
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A single timer thread shared by all web sockets for their periodical
+ * and delayed tasks, such as sending ping and pong frames and interrupting
+ * a reading thread which waits too long for a close frame.
+ *
+ * <p>
+ * A {@code Timer} per task would mean a thread per web socket which sleeps
+ * most of the time and is created again on every reconnection. The tasks
+ * run here must be short and must not block.
+ * </p>
+ *
+ * <p>
+ * Work which may block, such as tearing down a web socket, is run by
+ * {@link #execute(Runnable)} on pooled threads instead. They are kept for
+ * a while after their task so that the teardown of one connection and the
+ * next reconnection do not start a thread each.
+ * </p>
+ */
+class Scheduler
+{
+    private static final String THREAD_NAME = "WebSocketScheduler";
+    private static final String WORKER_NAME = "WebSocketWorker";
+    private static final long WORKER_KEEP_ALIVE = 60 * 1000;
+
+
+    /**
+     * Cancelled tasks stay in the queue of the timer until their time
+     * comes. They are removed after this many cancellations.
+     */
+    private static final int PURGE_THRESHOLD = 64;
+
+
+    private static Timer sTimer;
+    private static int sCancelled;
+    private static ThreadPoolExecutor sWorkers;
+
+
+    private Scheduler()
+    {
+    }
+
+
+    /**
+     * Run a task once after a delay.
+     *
+     * @param websocket
+     *         The web socket whose listeners are told if the task throws
+     *         an exception.
+     *
+     * @param task
+     *         The task to run on the shared timer thread.
+     *
+     * @param delay
+     *         The delay in milliseconds.
+     *
+     * @return
+     *         The scheduled task which can be passed to
+     *         {@link #cancel(TimerTask)}.
+     */
+    public static TimerTask schedule(final WebSocket websocket, final Runnable task, long delay)
+    {
+        TimerTask timerTask = new TimerTask() {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    task.run();
+                }
+                catch (Exception e)
+                {
+                    // An exception would terminate the timer thread and
+                    // with it the tasks of all the other web sockets.
+                    WebSocketException cause = new WebSocketException(
+                        WebSocketError.UNEXPECTED_ERROR_IN_SCHEDULED_TASK,
+                        "An uncaught exception was detected in a scheduled task", e);
+
+                    // Notify the listeners.
+                    ListenerManager manager = websocket.getListenerManager();
+                    manager.callOnError(cause);
+                    manager.callOnUnexpectedError(cause);
+                }
+            }
+        };
+
+        synchronized (Scheduler.class)
+        {
+            if (sTimer == null)
+            {
+                // A daemon thread, the reading and writing threads keep
+                // the application alive while a web socket is open.
+                sTimer = new Timer(THREAD_NAME, true);
+            }
+
+            try
+            {
+                sTimer.schedule(timerTask, Math.max(delay, 0));
+            }
+            catch (IllegalStateException e)
+            {
+                // An Error thrown by a task terminated the timer thread,
+                // the later tasks get a new one.
+                sTimer = new Timer(THREAD_NAME, true);
+                sTimer.schedule(timerTask, Math.max(delay, 0));
+            }
+        }
+
+        return timerTask;
+    }
+
+
+    /**
+     * Cancel a task scheduled by {@link #schedule(WebSocket, Runnable, long)}.
+     * Nothing happens if the task is {@code null} or has already run.
+     */
+    public static void cancel(TimerTask task)
+    {
+        if (task == null || task.cancel() == false)
+        {
+            return;
+        }
+
+        synchronized (Scheduler.class)
+        {
+            if (++sCancelled < PURGE_THRESHOLD)
+            {
+                return;
+            }
+
+            sCancelled = 0;
+            sTimer.purge();
+        }
+    }
+
+
+    /**
+     * Run a task which may block on a pooled thread.
+     */
+    public static void execute(Runnable task)
+    {
+        synchronized (Scheduler.class)
+        {
+            if (sWorkers == null)
+            {
+                // No idle threads are kept forever and a task never waits
+                // behind another one, a new thread is started when all
+                // the pooled ones are busy.
+                sWorkers = new ThreadPoolExecutor(
+                    0, Integer.MAX_VALUE, WORKER_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable)
+                        {
+                            Thread thread = new Thread(runnable, WORKER_NAME);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            }
+        }
+
+        sWorkers.execute(task);
+    }
+}
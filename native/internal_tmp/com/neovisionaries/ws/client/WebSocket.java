@@ -439,9 +439,12 @@ public class WebSocket
     private WritingThread mWritingThread;
     private Map<String, List<String>> mServerHeaders;
     private List<WebSocketExtension> mAgreedExtensions;
+    private PerMessageDeflateExtension mPerMessageDeflate;
     private String mAgreedProtocol;
     private boolean mExtended;
     private boolean mAutoFlush = true;
+    private volatile int mMaxPayloadSize;
+    private volatile long mLastActivityTime;
     private boolean mOnConnectedCalled;
     private boolean mReadingThreadStarted;
     private boolean mWritingThreadStarted;
@@ -489,15 +492,12 @@ public class WebSocket
         instance.mHandshakeBuilder = new HandshakeBuilder(mHandshakeBuilder);
         instance.setPingInterval(getPingInterval());
         instance.setPongInterval(getPongInterval());
+        instance.setMaxPayloadSize(getMaxPayloadSize());
 
-        // Copy listeners.
-        List<WebSocketListener> listeners = mListenerManager.getListeners();
-        synchronized (listeners)
+        // Copy listeners. getListeners() returns a snapshot.
+        for (WebSocketListener listener : mListenerManager.getListeners())
         {
-            for (WebSocketListener listener : listeners)
-            {
-                instance.addListener(listener);
-            }
+            instance.addListener(listener);
         }
 
         return instance;
@@ -612,6 +612,25 @@ public class WebSocket
     }
 
 
+    /**
+     * Add a value for {@code Sec-WebSocket-Extension}. The string is
+     * parsed by {@link WebSocketExtension#parse(String)}, e.g.
+     * {@code addExtension(WebSocketExtension.PERMESSAGE_DEFLATE)}
+     * enables compression if the server supports it.
+     *
+     * @param extension
+     *         A string representation of an extension. {@code null} or
+     *         a string that fails to be parsed is silently ignored.
+     *
+     * @return
+     *         {@code this} object.
+     */
+    public WebSocket addExtension(String extension)
+    {
+        return addExtension(WebSocketExtension.parse(extension));
+    }
+
+
     /**
      * Add a pair of HTTP header.
      *
@@ -746,6 +765,58 @@ public class WebSocket
     }
 
 
+    /**
+     * Get the maximum payload size of a frame. The default value is 0
+     * which means that messages are never split.
+     *
+     * @return
+     *         The maximum payload size in bytes.
+     */
+    public int getMaxPayloadSize()
+    {
+        return mMaxPayloadSize;
+    }
+
+
+    /**
+     * Set the maximum payload size of a frame.
+     *
+     * <p>
+     * A text or binary message whose payload (after compression, if
+     * permessage-deflate was agreed) is larger is sent as a fragmented
+     * message: the first frame followed by continuation frames of at most
+     * this size. Ping and pong frames are sent between the fragments, and
+     * smaller messages queued after a large message that has not started
+     * yet are sent before it, so a large upload does not hold up
+     * keep-alive and other interactive traffic.
+     * </p>
+     *
+     * <p>
+     * Messages fragmented by the application are sent as they are.
+     * </p>
+     *
+     * @param size
+     *         The maximum payload size in bytes. 0 disables splitting.
+     *
+     * @return
+     *         {@code this} object.
+     *
+     * @throws IllegalArgumentException
+     *         {@code size} is negative.
+     */
+    public WebSocket setMaxPayloadSize(int size)
+    {
+        if (size < 0)
+        {
+            throw new IllegalArgumentException("'size' must not be negative.");
+        }
+
+        mMaxPayloadSize = size;
+
+        return this;
+    }
+
+
     /**
      * Flush frames to the server. Flush is performed asynchronously.
      *
@@ -800,6 +871,11 @@ public class WebSocket
      * both before and after {@link #connect()} method.
      * </p>
      *
+     * <p>
+     * A ping frame is sent only when no frame was sent or received during
+     * the interval, other frames keep the connection alive just as well.
+     * </p>
+     *
      * @param interval
      *         The interval in milliseconds. A negative value is
      *         regarded as zero.
@@ -844,6 +920,11 @@ public class WebSocket
      * both before and after {@link #connect()} method.
      * </p>
      *
+     * <p>
+     * Like ping frames, a pong frame is sent only when no frame was sent
+     * or received during the interval.
+     * </p>
+     *
      * <blockquote>
      * <dl>
      * <dt>
@@ -2254,6 +2335,25 @@ public class WebSocket
                         "The extension contained in the Sec-WebSocket-Extensions header is not supported: " + name);
                 }
 
+                if (WebSocketExtension.PERMESSAGE_DEFLATE.equals(name))
+                {
+                    // RFC 7692, 5. The server must not accept more than
+                    // one offer of the same extension.
+                    if (mPerMessageDeflate != null)
+                    {
+                        throw new WebSocketException(
+                            WebSocketError.UNSUPPORTED_EXTENSION,
+                            "The extension was agreed more than once: " + name);
+                    }
+
+                    // Validates the parameters and prepares the compressor.
+                    PerMessageDeflateExtension deflate =
+                        PerMessageDeflateExtension.createFromResponse(extension);
+
+                    mPerMessageDeflate = deflate;
+                    extension = deflate;
+                }
+
                 // The extension has been agreed.
                 extensions.add(extension);
             }
@@ -2377,6 +2477,19 @@ public class WebSocket
     }
 
 
+    /**
+     * Get the agreed {@code permessage-deflate} extension.
+     *
+     * @return
+     *         The extension or {@code null} if compression was
+     *         not agreed.
+     */
+    PerMessageDeflateExtension getPerMessageDeflate()
+    {
+        return mPerMessageDeflate;
+    }
+
+
     void onReadingThreadStarted()
     {
         synchronized (mThreadsLock)
@@ -2437,6 +2550,9 @@ public class WebSocket
 
     private void onThreadsStarted()
     {
+        // The interval of the senders starts from here.
+        updateLastActivityTime();
+
         // Start sending ping frames periodically.
         // If the interval is zero, this call does nothing.
         mPingSender.start();
@@ -2446,6 +2562,25 @@ public class WebSocket
     }
 
 
+    /**
+     * Record that a frame was sent or received. This is called by the
+     * reading thread and the writing thread.
+     */
+    void updateLastActivityTime()
+    {
+        mLastActivityTime = System.currentTimeMillis();
+    }
+
+
+    /**
+     * Get the time when the latest frame was sent or received.
+     */
+    long getLastActivityTime()
+    {
+        return mLastActivityTime;
+    }
+
+
     void onReadingThreadFinished(WebSocketFrame closeFrame)
     {
         synchronized (mThreadsLock)
@@ -2503,6 +2638,12 @@ public class WebSocket
         {
         }
 
+        if (mPerMessageDeflate != null)
+        {
+            // Both threads have finished, nothing uses the compressor.
+            mPerMessageDeflate.close();
+        }
+
         synchronized (mStateManager)
         {
             // Change the state to CLOSED.
@@ -2520,11 +2661,12 @@ public class WebSocket
 
     private void finishAsynchronously()
     {
-        new Thread() {
+        Scheduler.execute(new Runnable() {
             @Override
-            public void run() {
+            public void run()
+            {
                 finish();
             }
-        }.start();
+        });
     }
 }
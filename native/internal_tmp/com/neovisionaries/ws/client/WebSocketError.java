@@ -281,6 +281,19 @@ public enum WebSocketError
     MESSAGE_CONSTRUCTION_ERROR,
 
 
+    /**
+     * The agreed {@code permessage-deflate} extension has a parameter
+     * which is not supported or has an invalid value.
+     */
+    PERMESSAGE_DEFLATE_UNSUPPORTED_PARAMETER,
+
+
+    /**
+     * Failed to decompress a message compressed by {@code permessage-deflate}.
+     */
+    DECOMPRESSION_ERROR,
+
+
     /**
      * Failed to convert payload data into a string.
      */
@@ -299,5 +312,12 @@ public enum WebSocketError
      * frames to the server).
      */
     UNEXPECTED_ERROR_IN_WRITING_THREAD,
+
+
+    /**
+     * An uncaught exception was detected in a task run by the shared
+     * timer, such as sending a periodical ping frame.
+     */
+    UNEXPECTED_ERROR_IN_SCHEDULED_TASK,
     ;
 }
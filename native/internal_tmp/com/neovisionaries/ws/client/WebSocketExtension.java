@@ -26,6 +26,13 @@ import java.util.Map;
  */
 public class WebSocketExtension
 {
+    /**
+     * The name of <a href="https://tools.ietf.org/html/rfc7692"
+     * >Per-Message Deflate</a> extension ({@code "permessage-deflate"}).
+     */
+    public static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+
+
     private final String mName;
     private final Map<String, String> mParameters;
 
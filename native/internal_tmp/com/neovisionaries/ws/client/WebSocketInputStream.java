@@ -23,6 +23,11 @@ import java.io.InputStream;
 
 class WebSocketInputStream extends FilterInputStream
 {
+    // Holds the header of the frame being read, only the reading
+    // thread reads frames.
+    private final byte[] mHeader = new byte[8];
+
+
     public WebSocketInputStream(InputStream in)
     {
         super(in);
@@ -38,7 +43,7 @@ class WebSocketInputStream extends FilterInputStream
     public WebSocketFrame readFrame() throws IOException, WebSocketException
     {
         // Buffer.
-        byte[] buffer = new byte[8];
+        byte[] buffer = mHeader;
 
         // Read the first two bytes.
         readBytes(buffer, 2);
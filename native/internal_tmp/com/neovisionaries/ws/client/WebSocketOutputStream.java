@@ -23,6 +23,24 @@ import java.io.OutputStream;
 
 class WebSocketOutputStream extends FilterOutputStream
 {
+    /**
+     * The size of the buffer in which frames are built. A frame that fits
+     * is written with a single call, a larger one in buffer-sized chunks.
+     */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+
+    /**
+     * The number of masking keys fetched from {@code SecureRandom} at a time.
+     */
+    private static final int MASKING_KEYS_PER_FETCH = 64;
+
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final byte[] mMaskingKeys = new byte[MASKING_KEYS_PER_FETCH * 4];
+    private int mMaskingKeyIndex = mMaskingKeys.length;
+
+
     public WebSocketOutputStream(OutputStream out)
     {
         super(out);
@@ -38,105 +56,179 @@ class WebSocketOutputStream extends FilterOutputStream
     }
 
 
-    public void write(WebSocketFrame frame) throws IOException
+    /**
+     * Write the bytes to the underlying stream at once.
+     * {@code FilterOutputStream} would write them one by one.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
     {
-        writeFrame0(frame);
-        writeFrame1(frame);
-        writeFrameExtendedPayloadLength(frame);
-
-        // Generate a random masking key.
-        byte[] maskingKey = Misc.nextBytes(4);
-
-        // Write the masking key.
-        write(maskingKey);
-
-        // Write the payload.
-        writeFramePayload(frame, maskingKey);
+        out.write(b, off, len);
     }
 
 
-    private void writeFrame0(WebSocketFrame frame) throws IOException
+    /**
+     * Write a frame. The header and the masked payload are built in a
+     * reusable buffer, so no memory is allocated per frame and a frame
+     * that fits in the buffer is written with a single call.
+     */
+    public void write(WebSocketFrame frame) throws IOException
     {
-        int b = (frame.getFin()  ? 0x80 : 0x00)
-              | (frame.getRsv1() ? 0x40 : 0x00)
-              | (frame.getRsv2() ? 0x20 : 0x00)
-              | (frame.getRsv3() ? 0x10 : 0x00)
-              | (frame.getOpcode() & 0x0F);
-
-        write(b);
-    }
+        int position = writeHeader(frame);
 
+        // The masking key follows the header.
+        int keyIndex = nextMaskingKey();
+        byte k0 = mMaskingKeys[keyIndex];
+        byte k1 = mMaskingKeys[keyIndex + 1];
+        byte k2 = mMaskingKeys[keyIndex + 2];
+        byte k3 = mMaskingKeys[keyIndex + 3];
 
-    private void writeFrame1(WebSocketFrame frame) throws IOException
-    {
-        // Frames sent from a client are always masked.
-        int b = 0x80;
+        mBuffer[position++] = k0;
+        mBuffer[position++] = k1;
+        mBuffer[position++] = k2;
+        mBuffer[position++] = k3;
 
-        int len = frame.getPayloadLength();
+        byte[] payload = frame.getPayload();
 
-        if (len <= 125)
-        {
-            b |= len;
-        }
-        else if (len <= 65535)
+        if (payload == null)
         {
-            b |= 126;
+            out.write(mBuffer, 0, position);
+            return;
         }
-        else
+
+        int offset = 0;
+
+        while (offset < payload.length)
         {
-            b |= 127;
-        }
+            int count = Math.min(mBuffer.length - position, payload.length - offset);
+
+            // Fill the rest of the buffer with masked payload.
+            mask(payload, offset, mBuffer, position, count, k0, k1, k2, k3);
 
-        write(b);
+            offset   += count;
+            position += count;
+
+            out.write(mBuffer, 0, position);
+            position = 0;
+        }
     }
 
 
-    private void writeFrameExtendedPayloadLength(WebSocketFrame frame) throws IOException
+    /**
+     * Write the first two bytes and the extended payload length
+     * into the buffer.
+     *
+     * @return
+     *         The position right after the header.
+     */
+    private int writeHeader(WebSocketFrame frame)
     {
+        mBuffer[0] = (byte)((frame.getFin()  ? 0x80 : 0x00)
+                          | (frame.getRsv1() ? 0x40 : 0x00)
+                          | (frame.getRsv2() ? 0x20 : 0x00)
+                          | (frame.getRsv3() ? 0x10 : 0x00)
+                          | (frame.getOpcode() & 0x0F));
+
         int len = frame.getPayloadLength();
 
+        // Frames sent from a client are always masked.
         if (len <= 125)
         {
-            return;
+            mBuffer[1] = (byte)(0x80 | len);
+            return 2;
         }
 
         if (len <= 65535)
         {
             // 2-byte in network byte order.
-            write((len >> 8) & 0xFF);
-            write((len     ) & 0xFF);
-            return;
+            mBuffer[1] = (byte)(0x80 | 126);
+            mBuffer[2] = (byte)(len >> 8);
+            mBuffer[3] = (byte)(len     );
+            return 4;
         }
 
         // In this implementation, the maximum payload length is (2^31 - 1).
         // So, the first 4 bytes are 0.
-        write(0);
-        write(0);
-        write(0);
-        write(0);
-        write((len >> 24) & 0xFF);
-        write((len >> 16) & 0xFF);
-        write((len >>  8) & 0xFF);
-        write((len      ) & 0xFF);
+        mBuffer[1] = (byte)(0x80 | 127);
+        mBuffer[2] = 0;
+        mBuffer[3] = 0;
+        mBuffer[4] = 0;
+        mBuffer[5] = 0;
+        mBuffer[6] = (byte)(len >> 24);
+        mBuffer[7] = (byte)(len >> 16);
+        mBuffer[8] = (byte)(len >>  8);
+        mBuffer[9] = (byte)(len      );
+        return 10;
     }
 
 
-    private void writeFramePayload(WebSocketFrame frame, byte[] maskingKey) throws IOException
+    /**
+     * Get the index of a fresh masking key in {@code mMaskingKeys}.
+     * Keys still come from {@code SecureRandom} as RFC 6455 requires,
+     * but they are fetched in batches so the shared generator is not
+     * locked for every frame.
+     */
+    private int nextMaskingKey()
     {
-        byte[] payload = frame.getPayload();
+        if (mMaskingKeyIndex == mMaskingKeys.length)
+        {
+            Misc.nextBytes(mMaskingKeys);
+            mMaskingKeyIndex = 0;
+        }
 
-        if (payload == null)
+        int index = mMaskingKeyIndex;
+        mMaskingKeyIndex += 4;
+
+        return index;
+    }
+
+
+    /**
+     * Copy {@code count} bytes of the payload starting at {@code offset}
+     * into the buffer, masking them with the key. The loop handles four
+     * bytes at a time with the key held in locals instead of computing
+     * {@code maskingKey[i % 4]} for every byte.
+     */
+    private static void mask(byte[] payload, int offset, byte[] buffer, int position, int count,
+                             byte k0, byte k1, byte k2, byte k3)
+    {
+        // Rotate the key so it lines up with the offset in the payload.
+        switch (offset & 3)
         {
-            return;
+            case 1: { byte t = k0; k0 = k1; k1 = k2; k2 = k3; k3 = t; break; }
+            case 2: { byte t = k0; k0 = k2; k2 = t; t = k1; k1 = k3; k3 = t; break; }
+            case 3: { byte t = k3; k3 = k2; k2 = k1; k1 = k0; k0 = t; break; }
+            default: break;
         }
 
-        for (int i = 0; i < payload.length; ++i)
+        int end = offset + (count & ~3);
+
+        while (offset < end)
         {
-            // Mask
-            int b = (payload[i] ^ maskingKey[i % 4]) & 0xFF;
+            buffer[position    ] = (byte)(payload[offset    ] ^ k0);
+            buffer[position + 1] = (byte)(payload[offset + 1] ^ k1);
+            buffer[position + 2] = (byte)(payload[offset + 2] ^ k2);
+            buffer[position + 3] = (byte)(payload[offset + 3] ^ k3);
+            offset   += 4;
+            position += 4;
+        }
+
+        // The last one to three bytes.
+        int tail = count & 3;
 
-            // Write
-            write(b);
+        if (tail > 0)
+        {
+            buffer[position] = (byte)(payload[offset] ^ k0);
+        }
+
+        if (tail > 1)
+        {
+            buffer[position + 1] = (byte)(payload[offset + 1] ^ k1);
+        }
+
+        if (tail > 2)
+        {
+            buffer[position + 2] = (byte)(payload[offset + 2] ^ k2);
         }
     }
 }
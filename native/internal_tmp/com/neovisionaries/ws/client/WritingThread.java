@@ -18,13 +18,26 @@ package com.neovisionaries.ws.client;
 
 import static com.neovisionaries.ws.client.WebSocketState.CLOSED;
 import static com.neovisionaries.ws.client.WebSocketState.CLOSING;
+import static com.neovisionaries.ws.client.WebSocketOpcode.CONTINUATION;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 import com.neovisionaries.ws.client.StateManager.CloseInitiator;
 
 
+/**
+ * Sends the queued frames to the server.
+ *
+ * <p>
+ * Frames are sent in three lanes. Ping and pong frames go first and may
+ * be sent between the fragments of a message. Other frames are sent in
+ * the order they were queued, except that messages larger than {@link
+ * WebSocket#getMaxPayloadSize()} wait in a lane of their own and are
+ * sent, split into fragments, when no other data frame is pending.
+ * A close frame waits for the large messages queued before it.
+ * </p>
+ */
 class WritingThread extends Thread
 {
     private static final int SHOULD_SEND     = 0;
@@ -32,18 +45,42 @@ class WritingThread extends Thread
     private static final int SHOULD_CONTINUE = 2;
     private static final int SHOULD_FLUSH    = 3;
     private final WebSocket mWebSocket;
-    private final List<WebSocketFrame> mFrames;
-    private boolean mStopRequested;
+    private final FrameQueue mControlFrames;
+    private final FrameQueue mFrames;
+
+    // The large messages waiting to be fragmented and the one being
+    // sent. Accessed only by this thread.
+    private final LinkedList<WebSocketFrame> mLargeMessages = new LinkedList<WebSocketFrame>();
+    private WebSocketFrame mLargeMessage;
+    private int mLargeMessageOffset;
+    private int mFragmentSize;
+
+    // True while a message fragmented by the application is being sent,
+    // its continuation frames must not be preceded by another message.
+    private boolean mInFragmentedMessage;
+
+    // True once a close frame was moved behind the large messages,
+    // frames queued after it must not overtake it.
+    private boolean mCloseDeferred;
+    private volatile boolean mStopRequested;
+    private volatile boolean mFlushNeeded;
+
+    // True while this thread is parked or about to park. Producers
+    // unpark it only then, so queueing a frame to a busy thread costs
+    // one atomic exchange and no lock.
+    private volatile boolean mWaiting;
+
+    // Accessed only by this thread.
     private WebSocketFrame mCloseFrame;
-    private boolean mFlushNeeded;
 
 
     public WritingThread(WebSocket websocket)
     {
         super("WritingThread");
 
-        mWebSocket = websocket;
-        mFrames    = new LinkedList<WebSocketFrame>();
+        mWebSocket     = websocket;
+        mControlFrames = new FrameQueue();
+        mFrames        = new FrameQueue();
     }
 
 
@@ -121,39 +158,51 @@ class WritingThread extends Thread
 
     public void requestStop()
     {
-        synchronized (this)
-        {
-            // Schedule stopping.
-            mStopRequested = true;
+        // Schedule stopping.
+        mStopRequested = true;
 
-            // Wake up this thread.
-            notifyAll();
-        }
+        // Wake up this thread.
+        wakeUp();
     }
 
 
     public void queueFrame(WebSocketFrame frame)
     {
-        synchronized (this)
+        // Append the frame to the queue of web socket frames
+        // which are to be sent to the server. Ping and pong frames
+        // have a lane of their own.
+        if (frame.isPingFrame() || frame.isPongFrame())
         {
-            // Append the frame to the list of web socket frames
-            // which are to be sent to the server.
-            mFrames.add(frame);
-
-            // Wake up this thread.
-            notifyAll();
+            mControlFrames.offer(frame);
+        }
+        else
+        {
+            mFrames.offer(frame);
         }
+
+        // Wake up this thread.
+        wakeUp();
     }
 
 
     public void queueFlush()
     {
-        synchronized (this)
-        {
-            mFlushNeeded = true;
+        mFlushNeeded = true;
+
+        // Wake up this thread.
+        wakeUp();
+    }
+
 
-            // Wake up this thread.
-            notifyAll();
+    private void wakeUp()
+    {
+        // The queue or the flags were updated before mWaiting is read
+        // and this thread sets mWaiting before it checks them again,
+        // so either it sees the update or it is unparked. An unpark
+        // that comes before the park makes the park return at once.
+        if (mWaiting)
+        {
+            LockSupport.unpark(this);
         }
     }
 
@@ -178,78 +227,101 @@ class WritingThread extends Thread
 
     private int waitForFrames()
     {
-        synchronized (this)
+        // If this thread has been requested to stop.
+        if (mStopRequested)
         {
-            // If this thread has been requested to stop.
-            if (mStopRequested)
-            {
-                return SHOULD_STOP;
-            }
+            return SHOULD_STOP;
+        }
 
-            // If a close frame has already been sent.
-            if (mCloseFrame != null)
-            {
-                return SHOULD_STOP;
-            }
+        // If a close frame has already been sent.
+        if (mCloseFrame != null)
+        {
+            return SHOULD_STOP;
+        }
 
-            // If the list of web socket frames
-            if (mFrames.size() == 0)
+        // If there is no frame to send.
+        if (hasFrames() == false)
+        {
+            // Check mFlushNeeded before parking.
+            if (mFlushNeeded)
             {
-                // Check mFlushNeeded before calling wait().
-                if (mFlushNeeded)
-                {
-                    mFlushNeeded = false;
-                    return SHOULD_FLUSH;
-                }
-
-                try
-                {
-                    // Wait until a new frame is added to the list
-                    // or this thread is requested to stop.
-                    wait();
-                }
-                catch (InterruptedException e)
-                {
-                }
+                mFlushNeeded = false;
+                return SHOULD_FLUSH;
             }
 
-            if (mStopRequested)
+            mWaiting = true;
+
+            // Check again now that producers will unpark this thread.
+            if (hasFrames() == false && mFlushNeeded == false && mStopRequested == false)
             {
-                return SHOULD_STOP;
+                // Wait until a new frame is queued, a flush is
+                // requested or this thread is requested to stop.
+                LockSupport.park(this);
             }
 
-            if (mFrames.size() == 0)
+            mWaiting = false;
+        }
+
+        if (mStopRequested)
+        {
+            return SHOULD_STOP;
+        }
+
+        if (hasFrames() == false)
+        {
+            if (mFlushNeeded)
             {
-                if (mFlushNeeded)
-                {
-                    mFlushNeeded = false;
-                    return SHOULD_FLUSH;
-                }
-
-                // Spurious wakeup.
-                return SHOULD_CONTINUE;
+                mFlushNeeded = false;
+                return SHOULD_FLUSH;
             }
+
+            // Spurious wakeup.
+            return SHOULD_CONTINUE;
         }
 
         return SHOULD_SEND;
     }
 
 
-    private void sendFrames(boolean last) throws WebSocketException
+    /**
+     * Check whether {@link #nextFrame()} has a frame to return. The two
+     * must agree, otherwise this thread spins on frames it is not allowed
+     * to send yet.
+     */
+    private boolean hasFrames()
     {
-        List<WebSocketFrame> frames;
+        if (mControlFrames.isEmpty() == false || mLargeMessage != null)
+        {
+            return true;
+        }
+
+        if (mCloseFrame != null)
+        {
+            // The rest is reported as unsent.
+            return mFrames.isEmpty() == false || mLargeMessages.isEmpty() == false;
+        }
 
-        synchronized (this)
+        // Frames queued after a deferred close frame wait for it.
+        if (mCloseDeferred == false && mFrames.isEmpty() == false)
         {
-            // Move the frames from mFrames to frames.
-            frames = new ArrayList<WebSocketFrame>(mFrames.size());
-            frames.addAll(mFrames);
-            mFrames.clear();
+            return true;
         }
 
+        // The large messages wait for the end of a message fragmented
+        // by the application.
+        return mInFragmentedMessage == false && mLargeMessages.isEmpty() == false;
+    }
+
+
+    private void sendFrames(boolean last) throws WebSocketException
+    {
         boolean closeFrameFound = false;
 
-        for (WebSocketFrame frame : frames)
+        // Send the frames queued so far, frames queued meanwhile are
+        // sent too. Nothing is copied and no lock is taken.
+        WebSocketFrame frame;
+
+        while ((frame = nextFrame()) != null)
         {
             // Send the frame to the server.
             sendFrame(frame);
@@ -263,9 +335,9 @@ class WritingThread extends Thread
 
         boolean flush = (last || mWebSocket.isAutoFlush() || closeFrameFound);
 
-        synchronized (this)
+        if (mFlushNeeded)
         {
-            flush |= mFlushNeeded;
+            flush = true;
             mFlushNeeded = false;
         }
 
@@ -296,23 +368,163 @@ class WritingThread extends Thread
     }
 
 
-    private void sendFrame(WebSocketFrame frame) throws WebSocketException
+    /**
+     * Pick the next frame to send.
+     *
+     * @return
+     *         The frame or {@code null} if there is nothing to send.
+     */
+    private WebSocketFrame nextFrame()
     {
-        boolean unsent = false;
+        // Control frames may be sent between the fragments of a message.
+        WebSocketFrame frame = mControlFrames.poll();
+
+        if (frame != null)
+        {
+            return frame;
+        }
+
+        // Once the close frame was sent, the rest is reported as unsent.
+        if (mCloseFrame != null)
+        {
+            return pollRemaining();
+        }
 
-        synchronized (this)
+        // No other data frame may be sent until the large message
+        // being fragmented is complete.
+        if (mLargeMessage != null)
         {
-            // If a close frame has already been sent.
-            if (mCloseFrame != null)
+            return nextFragment();
+        }
+
+        while (mCloseDeferred == false && (frame = mFrames.poll()) != null)
+        {
+            if (mInFragmentedMessage == false && isLarge(frame))
             {
-                // Frames should not be sent to the server.
-                unsent = true;
+                // Let the frames queued after it go first.
+                mLargeMessages.add(frame);
+                continue;
             }
-            // If the frame is a close frame.
-            else if (frame.isCloseFrame())
+
+            if (frame.isCloseFrame() && mInFragmentedMessage == false &&
+                mLargeMessages.isEmpty() == false)
             {
-                mCloseFrame = frame;
+                // Close after the large messages queued before it. A close
+                // frame in the middle of a message fragmented by the
+                // application is a control frame and goes out at once,
+                // the large messages could not be sent before the rest of
+                // that message anyway.
+                mLargeMessages.add(frame);
+                mCloseDeferred = true;
+                break;
             }
+
+            if (frame.isDataFrame() || frame.isContinuationFrame())
+            {
+                mInFragmentedMessage = (frame.getFin() == false);
+            }
+
+            return frame;
+        }
+
+        if (mInFragmentedMessage)
+        {
+            // Wait for the rest of the message fragmented by the application.
+            return null;
+        }
+
+        frame = mLargeMessages.poll();
+
+        if (frame == null || frame.isCloseFrame())
+        {
+            return frame;
+        }
+
+        // Compress the whole message before splitting it.
+        frame = compress(frame);
+
+        mFragmentSize = mWebSocket.getMaxPayloadSize();
+
+        if (mFragmentSize == 0 || frame.getPayloadLength() <= mFragmentSize)
+        {
+            return frame;
+        }
+
+        mLargeMessage       = frame;
+        mLargeMessageOffset = 0;
+
+        return nextFragment();
+    }
+
+
+    private boolean isLarge(WebSocketFrame frame)
+    {
+        int max = mWebSocket.getMaxPayloadSize();
+
+        return max != 0 && frame.getFin() &&
+               (frame.isTextFrame() || frame.isBinaryFrame()) &&
+               max < frame.getPayloadLength();
+    }
+
+
+    /**
+     * Cut the next fragment of {@code mLargeMessage}. The first one keeps
+     * the opcode and the RSV1 bit of the message, the others are
+     * continuation frames.
+     */
+    private WebSocketFrame nextFragment()
+    {
+        byte[] payload = mLargeMessage.getPayload();
+        int length = Math.min(mFragmentSize, payload.length - mLargeMessageOffset);
+        boolean first = (mLargeMessageOffset == 0);
+        boolean fin = (mLargeMessageOffset + length == payload.length);
+
+        WebSocketFrame fragment = new WebSocketFrame()
+            .setFin(fin)
+            .setRsv1(first && mLargeMessage.getRsv1())
+            .setOpcode(first ? mLargeMessage.getOpcode() : CONTINUATION)
+            .setPayload(Arrays.copyOfRange(payload, mLargeMessageOffset, mLargeMessageOffset + length));
+
+        mLargeMessageOffset += length;
+
+        if (fin)
+        {
+            mLargeMessage = null;
+        }
+
+        return fragment;
+    }
+
+
+    private WebSocketFrame pollRemaining()
+    {
+        WebSocketFrame frame = mFrames.poll();
+
+        if (frame != null)
+        {
+            return frame;
+        }
+
+        mLargeMessage = null;
+
+        return mLargeMessages.poll();
+    }
+
+
+    private void sendFrame(WebSocketFrame frame) throws WebSocketException
+    {
+        boolean unsent = false;
+
+        // If a close frame has already been sent.
+        if (mCloseFrame != null)
+        {
+            // Frames should not be sent to the server.
+            unsent = true;
+        }
+        // If the frame is a close frame.
+        else if (frame.isCloseFrame())
+        {
+            mCloseFrame = frame;
         }
 
         if (unsent)
@@ -330,10 +542,16 @@ class WritingThread extends Thread
             changeToClosing();
         }
 
+        // Compress the frame if permessage-deflate was agreed.
+        frame = compress(frame);
+
         try
         {
             // Send the frame to the server.
             mWebSocket.getOutput().write(frame);
+
+            // Let the ping and pong senders know the connection is busy.
+            mWebSocket.updateLastActivityTime();
         }
         catch (IOException e)
         {
@@ -355,6 +573,32 @@ class WritingThread extends Thread
     }
 
 
+    /**
+     * Compress the payload of an unfragmented text or binary message.
+     * Fragmented messages and control frames are sent as they are since
+     * RFC 7692 lets each message choose whether it is compressed.
+     */
+    private WebSocketFrame compress(WebSocketFrame frame)
+    {
+        PerMessageDeflateExtension deflate = mWebSocket.getPerMessageDeflate();
+
+        // RSV1 is set if the frame was compressed already.
+        if (deflate == null || frame.getFin() == false || frame.getRsv1() ||
+            (frame.isTextFrame() == false && frame.isBinaryFrame() == false) ||
+            frame.hasPayload() == false)
+        {
+            return frame;
+        }
+
+        // The frame may be shared by the application, send a copy.
+        return new WebSocketFrame()
+            .setFin(true)
+            .setRsv1(true)
+            .setOpcode(frame.getOpcode())
+            .setPayload(deflate.compress(frame.getPayload()));
+    }
+
+
     private void changeToClosing()
     {
         StateManager manager = mWebSocket.getStateManager();
@@ -21,6 +21,7 @@ import com.codename1.whatsapp.model.ChatContact;
 import com.codename1.whatsapp.model.ChatMessage;
 import com.codename1.whatsapp.model.Server;
 import com.codename1.whatsapp.model.ServerMessages;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -101,19 +102,29 @@ public class WhatsAppClone implements PushCallback {
             }
 
             @Override
-            public void messageReceived(ChatMessage m) {
+            public void messagesReceived(List<ChatMessage> messages) {
                 Form f = getCurrentForm();
                 if(f instanceof ChatForm) {
                     ChatForm cf = (ChatForm)f;
-                    if(cf.getContact().id.equals(m.authorId.get())) {
-                        cf.addMessageToUI(m);
+                    String id = cf.getContact().id.get();
+                    List<ChatMessage> l = new ArrayList<>();
+                    for(ChatMessage m : messages) {
+                        if(id != null && id.equals(m.authorId.get())) {
+                            l.add(m);
+                        }
                     }
+                    cf.addMessagesToUI(l);
                 } 
-                MainForm.getInstance().refreshChatsContainer();
             }
 
             @Override
             public void userTyping(String contactId) {
+                showTyping(contactId, true);
+            }
+
+            @Override
+            public void userStoppedTyping(String contactId) {
+                showTyping(contactId, false);
             }
 
             @Override
@@ -122,6 +133,17 @@ public class WhatsAppClone implements PushCallback {
         });
     }
     
+    private void showTyping(String contactId, boolean typing) {
+        Form f = getCurrentForm();
+        if(f instanceof ChatForm) {
+            ChatForm cf = (ChatForm)f;
+            if(contactId != null && 
+                    contactId.equals(cf.getContact().id.get())) {
+                cf.setTyping(typing);
+            }
+        }
+    }
+    
     public void start() {
         if(current != null){
             current.show();
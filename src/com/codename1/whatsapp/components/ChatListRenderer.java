@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Codename One through http://www.codenameone.com/ if you
+ * need additional information or have any questions.
+ */
+
+package com.codename1.whatsapp.components;
+
+import com.codename1.components.MultiButton;
+import com.codename1.ui.Component;
+import com.codename1.ui.List;
+import com.codename1.ui.list.ListCellRenderer;
+import com.codename1.whatsapp.model.ChatContact;
+
+/**
+ * Draws the rows of the chat list with a single {@code MultiButton} that is
+ * updated for every visible row, so the cost of the list doesn't grow with
+ * the number of conversations
+ */
+public class ChatListRenderer implements ListCellRenderer<ChatContact> {
+    private final MultiButton renderer = new MultiButton();
+
+    @Override
+    public Component getListCellRendererComponent(List list,
+            ChatContact c, int index, boolean isSelected) {
+        renderer.setTextLine1(c.name.get());
+        String tagline = c.tagline.get();
+        if(tagline == null || tagline.length() == 0) {
+            tagline = "...";
+        }
+        renderer.setTextLine2(tagline);
+        renderer.setIcon(c.getLargeIcon());
+        return renderer;
+    }
+
+    @Override
+    public Component getListFocusComponent(List list) {
+        return null;
+    }
+
+    /**
+     * A row used to size the list without rendering its content
+     */
+    public static ChatContact prototype() {
+        return new ChatContact().
+            name.set("XXXXXXXXXXXXXXXX").
+            tagline.set("XXXXXXXXXXXXXXXXXXXXXXXX");
+    }
+}
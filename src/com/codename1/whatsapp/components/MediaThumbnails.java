@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Codename One through http://www.codenameone.com/ if you
+ * need additional information or have any questions.
+ */
+
+package com.codename1.whatsapp.components;
+
+import com.codename1.io.FileSystemStorage;
+import com.codename1.io.Log;
+import static com.codename1.ui.CN.*;
+import com.codename1.ui.EncodedImage;
+import com.codename1.ui.Image;
+import com.codename1.ui.geom.Dimension;
+import com.codename1.ui.util.ImageIO;
+import com.codename1.util.EasyThread;
+import com.codename1.util.OnComplete;
+import com.codename1.whatsapp.model.Sha256;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Creates the square thumbnails shown in media bubbles. The original image
+ * is decoded and scaled down on a background thread and the result is saved
+ * under the app home, so the full size image is only decoded the first
+ * time a bubble for it is shown. Media picked from the gallery or the file
+ * system might not be writable so thumbnails are never stored next to it.
+ */
+public class MediaThumbnails {
+    private static EasyThread thread;
+    private static Image placeholder;
+    private static String directory;
+
+    private MediaThumbnails() {
+    }
+
+    /**
+     * A neutral image shown in the bubble while the thumbnail loads
+     *
+     * @param size the width and height of the thumbnail
+     * @return the placeholder
+     */
+    public static Image placeholder(int size) {
+        if(placeholder == null || placeholder.getWidth() != size) {
+            placeholder = Image.createImage(size, size, 0xffe2e7ea);
+        }
+        return placeholder;
+    }
+
+    /**
+     * The path of the persisted thumbnail of the given size, named by a 
+     * hash of the media path
+     */
+    public static String thumbnailPath(String media, int size) {
+        if(directory == null) {
+            FileSystemStorage fs = FileSystemStorage.getInstance();
+            String d = fs.getAppHomePath() + "thumbnails/";
+            if(!fs.exists(d)) {
+                fs.mkdir(d);
+            }
+            directory = d;
+        }
+        return directory + Sha256.hex(media) + "." + size + ".jpg";
+    }
+
+    /**
+     * Loads the thumbnail on a background thread, creating it if it doesn't
+     * exist yet
+     *
+     * @param media the path of the original image
+     * @param size the width and height of the thumbnail
+     * @param callback invoked on the EDT with the thumbnail or null if the
+     *      media couldn't be read
+     */
+    public static void load(String media, int size,
+            OnComplete<Image> callback) {
+        if(thread == null) {
+            thread = EasyThread.start("Thumbnails");
+        }
+        thread.run(() -> {
+            Image img = createThumbnail(media, size);
+            callSerially(() -> callback.completed(img));
+        });
+    }
+
+    private static Image createThumbnail(String media, int size) {
+        FileSystemStorage fs = FileSystemStorage.getInstance();
+        String thumb = thumbnailPath(media, size);
+        if(fs.exists(thumb)) {
+            try(InputStream is = fs.openInputStream(thumb)) {
+                return EncodedImage.create(is).fill(size, size);
+            } catch(IOException err) {
+                Log.e(err);
+                fs.delete(thumb);
+            }
+        }
+        ImageIO io = ImageIO.getImageIO();
+        if(io == null) {
+            // without ImageIO we can't encode a thumbnail, scale the 
+            // original in memory every time
+            try(InputStream is = fs.openInputStream(media)) {
+                return Image.createImage(is).fill(size, size);
+            } catch(IOException err) {
+                Log.e(err);
+                return null;
+            }
+        }
+        byte[] data;
+        try {
+            Dimension d = io.getImageSize(media);
+            if(d == null || d.getWidth() <= 0 || d.getHeight() <= 0) {
+                throw new IOException("Can't read the size of " + media);
+            }
+
+            // scale so the short side fits the thumbnail, fill crops
+            // the rest once the small image is loaded
+            float ratio = Math.max(size / (float)d.getWidth(),
+                size / (float)d.getHeight());
+            int w = Math.max(1, Math.round(d.getWidth() * ratio));
+            int h = Math.max(1, Math.round(d.getHeight() * ratio));
+            ByteArrayOutputStream bo = new ByteArrayOutputStream();
+            io.save(media, bo, ImageIO.FORMAT_JPEG, w, h, 0.8f);
+            data = bo.toByteArray();
+        } catch(IOException err) {
+            Log.e(err);
+            return null;
+        }
+        try(OutputStream os = fs.openOutputStream(thumb)) {
+            os.write(data);
+        } catch(IOException err) {
+            // the thumbnail is still shown, it's just created again the 
+            // next time
+            Log.e(err);
+            fs.delete(thumb);
+        }
+        return EncodedImage.create(data).fill(size, size);
+    }
+}
@@ -24,11 +24,11 @@
 package com.codename1.whatsapp.forms;
 
 import com.codename1.capture.Capture;
-import com.codename1.components.SpanLabel;
 import com.codename1.ext.filechooser.FileChooser;
 import com.codename1.l10n.SimpleDateFormat;
 import com.codename1.ui.Button;
 import com.codename1.ui.Container;
+import com.codename1.ui.Font;
 import com.codename1.ui.FontImage;
 import com.codename1.ui.Form;
 import com.codename1.ui.TextArea;
@@ -39,8 +39,6 @@ import com.codename1.ui.layouts.BoxLayout;
 import com.codename1.ui.plaf.Border;
 import static com.codename1.ui.CN.*;
 import com.codename1.ui.Component;
-import com.codename1.ui.EncodedImage;
-import com.codename1.ui.Image;
 import com.codename1.ui.Label;
 import com.codename1.ui.events.ActionEvent;
 import com.codename1.ui.events.ActionListener;
@@ -49,27 +47,158 @@ import com.codename1.ui.layouts.LayeredLayout;
 import com.codename1.ui.plaf.Style;
 import com.codename1.util.DateUtil;
 import com.codename1.whatsapp.components.ChatBubbleBorder;
+import com.codename1.whatsapp.components.MediaThumbnails;
 import com.codename1.whatsapp.model.ChatContact;
 import com.codename1.whatsapp.model.ChatMessage;
+import com.codename1.whatsapp.model.MessageStore;
 import com.codename1.whatsapp.model.Server;
-import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class ChatForm extends Form {
+    private static final int PAGE_SIZE = 30;
     private ChatContact contact;
     private final int DAY = 24 * 60 * 60000;
     private final SimpleDateFormat DAY_FORMAT = 
         new SimpleDateFormat("MMMMMM dd, yyyy");
-    private boolean todayAdded;
+    private final MessageList messages = new MessageList();
+    
+    // the loaded messages in chronological order, rows are materialized 
+    // only for the window [first, last) around the visible area and the 
+    // rest of the list is represented by two spacers. Rows outside the 
+    // window are never created, their height is estimated until they're 
+    // laid out in the window and measured
+    private final List<ChatMessage> model = new ArrayList<>();
+    private final RowHeights rows = new RowHeights();
+    private final Container topSpacer = createSpacer();
+    private final Container bottomSpacer = createSpacer();
+    private int first;
+    private int last;
+    private boolean loadingHistory;
+    private boolean historyComplete;
+    private int lineHeight;
+    private int charsPerLine;
+    private int bubblePadding;
+    private int dayHeight;
+    
+    /**
+     * The scrollable list of bubbles, exposes the scroll position so the 
+     * viewport stays in place when older messages are added above it
+     */
+    private static class MessageList extends Container {
+        private Runnable layoutListener;
+        
+        MessageList() {
+            super(BoxLayout.y());
+            setScrollableY(true);
+        }
+        
+        void shiftScrollY(int dy) {
+            setScrollY(Math.max(0, getScrollY() + dy));
+        }
+        
+        @Override
+        public void layoutContainer() {
+            super.layoutContainer();
+            if(layoutListener != null) {
+                layoutListener.run();
+            }
+        }
+    }
+    
+    /**
+     * The heights of all the rows with their prefix sums in a Fenwick tree, 
+     * so the offset of a row and the row at an offset are found without 
+     * walking the list on every scroll
+     */
+    private static class RowHeights {
+        private int[] heights = new int[16];
+        private int[] tree = new int[17];
+        private int size;
+        
+        int size() {
+            return size;
+        }
+        
+        int get(int index) {
+            return heights[index];
+        }
+        
+        void set(int index, int h) {
+            int delta = h - heights[index];
+            heights[index] = h;
+            for(int iter = index + 1 ; iter <= size ; iter += iter & -iter) {
+                tree[iter] += delta;
+            }
+        }
+        
+        /**
+         * Inserts rows of height 0, this rebuilds the tree in linear time 
+         * so it's meant for pages of messages rather than single rows
+         */
+        void insert(int index, int count) {
+            if(size + count > heights.length) {
+                int[] h = new int[Math.max(heights.length * 2, size + count)];
+                System.arraycopy(heights, 0, h, 0, size);
+                heights = h;
+                tree = new int[h.length + 1];
+            }
+            System.arraycopy(heights, index, heights, index + count, 
+                size - index);
+            for(int iter = index ; iter < index + count ; iter++) {
+                heights[iter] = 0;
+            }
+            size += count;
+            for(int iter = 1 ; iter <= size ; iter++) {
+                tree[iter] = heights[iter - 1];
+            }
+            for(int iter = 1 ; iter <= size ; iter++) {
+                int parent = iter + (iter & -iter);
+                if(parent <= size) {
+                    tree[parent] += tree[iter];
+                }
+            }
+        }
+        
+        /**
+         * @return the total height of the rows before index
+         */
+        int offset(int index) {
+            int sum = 0;
+            for(int iter = index ; iter > 0 ; iter -= iter & -iter) {
+                sum += tree[iter];
+            }
+            return sum;
+        }
+        
+        /**
+         * @return the row that contains the offset y or size if y is below 
+         *      the last row
+         */
+        int indexAt(int y) {
+            int pos = 0;
+            for(int step = Integer.highestOneBit(Math.max(size, 1)) ; 
+                    step > 0 ; step >>= 1) {
+                int next = pos + step;
+                if(next <= size && tree[next] <= y) {
+                    pos = next;
+                    y -= tree[next];
+                }
+            }
+            return pos;
+        }
+    }
     
     public ChatContact getContact() {
         return contact;
     }
     
     public ChatForm(ChatContact contact, Form parent) {
-        super(contact.name.get(), BoxLayout.yLast());
+        super(contact.name.get(), new BorderLayout());
         setUIID("ChatForm");
         this.contact = contact;
         
@@ -91,39 +220,317 @@ public class ChatForm extends Form {
         tb.addCommandToOverflowMenu("Mute notifications", null, e -> {});
         tb.addCommandToOverflowMenu("Wallpaper", null, e -> {});
         
-        final Component cc = createInputContainer();
-        add(cc);
-
-        if(contact.chats.size() > 0) {
-            Date time = contact.chats.get(0).time.get();
-            long currentDay = time.getTime() / DAY;
-            addDay(time, currentDay);
-            for(ChatMessage m : contact.chats) {
-                time = m.time.get();
-                long c = time.getTime() / DAY;
-                if(c != currentDay) {
-                    currentDay = c;
-                    addDay(time, currentDay);
-                }
-                addMessageToUINoAnimation(m);
+        initEstimates();
+        messages.layoutListener = () -> measureWindow();
+        messages.add(topSpacer);
+        messages.add(bottomSpacer);
+        add(CENTER, messages);
+        add(SOUTH, createInputContainer());
+        
+        messages.addScrollListener((scrollX, scrollY, oldscrollX, 
+                oldscrollY) -> {
+            updateWindow();
+            if(scrollY < oldscrollY && 
+                    scrollY < getDisplayHeight() / 2) {
+                loadOlderMessages();
             }
-        }
+        });
+
+        loadingHistory = true;
+        Server.fetchMessages(contact, null, PAGE_SIZE, page -> {
+            loadingHistory = false;
+            historyComplete = page.size() < PAGE_SIZE;
+            
+            // messages that arrived while the page was loading are already 
+            // in the model and newer than the history, they might also be 
+            // in the page if they were stored before it was read
+            List<ChatMessage> older = withoutLoaded(page);
+            model.addAll(0, older);
+            modelInserted(0, older.size());
+            first += older.size();
+            last += older.size();
+            refreshRow(older.size());
+            showNewest();
+            messages.revalidate();
+            scrollToNewest();
+        });
         addShowListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent evt) {
                 removeShowListener(this);
-                getContentPane().scrollComponentToVisible(cc);
+                scrollToNewest();
             }
         });
+        if(Server.isTyping(contact.id.get())) {
+            setTyping(true);
+        }
     }    
     
+    /**
+     * Shows the contact is typing in place of the title
+     */
+    public void setTyping(boolean typing) {
+        if(typing) {
+            setTitle("typing...");
+        } else {
+            setTitle(contact.name.get());
+        }
+    }
+    
+    private static Container createSpacer() {
+        Container c = new Container();
+        c.setPreferredH(0);
+        return c;
+    }
+    
+    private int viewportHeight() {
+        int h = messages.getHeight();
+        if(h <= 0) {
+            h = getDisplayHeight();
+        }
+        return h;
+    }
     
-    private void addDay(Date d, long currentDay) {
+    private void scrollToNewest() {
+        if(last == model.size() && last > first) {
+            messages.scrollComponentToVisible(
+                messages.getComponentAt(messages.getComponentCount() - 2));
+        }
+    }
+    
+    private void loadOlderMessages() {
+        if(loadingHistory || historyComplete || model.isEmpty()) {
+            return;
+        }
+        loadingHistory = true;
+        Server.fetchMessages(contact, model.get(0), PAGE_SIZE, page -> {
+            loadingHistory = false;
+            historyComplete = page.size() < PAGE_SIZE;
+            if(page.size() > 0) {
+                prependPage(page);
+            }
+        });
+    }
+    
+    private List<ChatMessage> withoutLoaded(List<ChatMessage> page) {
+        if(model.isEmpty()) {
+            return page;
+        }
+        Set<String> loaded = new HashSet<>();
+        for(ChatMessage m : model) {
+            loaded.add(MessageStore.recordKey(m));
+            if(m.localId.get() != null) {
+                loaded.add(m.localId.get());
+            }
+        }
+        List<ChatMessage> result = new ArrayList<>();
+        for(ChatMessage m : page) {
+            if(!loaded.contains(MessageStore.recordKey(m)) && 
+                    (m.localId.get() == null || 
+                    !loaded.contains(m.localId.get()))) {
+                result.add(m);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Adds older messages above the window, the viewport is kept in place 
+     * by shifting the scroll by the height that was added above it
+     */
+    private void prependPage(List<ChatMessage> page) {
+        int anchorY = bottomSpacer.getY();
+        model.addAll(0, page);
+        modelInserted(0, page.size());
+        first += page.size();
+        last += page.size();
+        
+        // the previous top of the list might continue the last day or 
+        // group of the page
+        refreshRow(page.size());
+        updateSpacers();
+        messages.revalidate();
+        messages.shiftScrollY(bottomSpacer.getY() - anchorY);
+        updateWindow();
+    }
+    
+    /**
+     * Makes sure the rows around the visible area are materialized, the 
+     * window is only recomputed once the visible area gets close to its 
+     * edges
+     */
+    private void updateWindow() {
+        int h = viewportHeight();
+        int scrollY = messages.getScrollY();
+        int top = topSpacer.getPreferredH();
+        int bottom = bottomSpacer.getY();
+        if((first == 0 || scrollY - h / 2 >= top) && 
+                (last == model.size() || scrollY + h + h / 2 <= bottom)) {
+            return;
+        }
+        int from = Math.max(0, scrollY - h);
+        int to = scrollY + 2 * h;
+        int newFirst = rows.indexAt(from);
+        int newLast = Math.min(model.size(), rows.indexAt(to) + 1);
+        setWindow(newFirst, newLast);
+        messages.revalidate();
+    }
+    
+    /**
+     * Materializes the newest rows that fill a few screens
+     */
+    private void showNewest() {
+        int top = rows.offset(model.size()) - 3 * viewportHeight();
+        int newFirst = top <= 0 ? 0 : rows.indexAt(top);
+        setWindow(newFirst, model.size());
+    }
+    
+    private void setWindow(int newFirst, int newLast) {
+        if(newFirst >= last || newLast <= first) {
+            // no overlap, drop the whole window
+            for(int iter = first ; iter < last ; iter++) {
+                messages.removeComponent(messages.getComponentAt(1));
+            }
+            first = newFirst;
+            last = newFirst;
+        }
+        while(first < newFirst) {
+            messages.removeComponent(messages.getComponentAt(1));
+            first++;
+        }
+        while(last > newLast) {
+            messages.removeComponent(messages.getComponentAt(
+                messages.getComponentCount() - 2));
+            last--;
+        }
+        while(first > newFirst) {
+            first--;
+            messages.addComponent(1, createRow(first));
+        }
+        while(last < newLast) {
+            messages.addComponent(messages.getComponentCount() - 1, 
+                createRow(last));
+            last++;
+        }
+        updateSpacers();
+    }
+    
+    private void updateSpacers() {
+        topSpacer.setPreferredH(rows.offset(first));
+        bottomSpacer.setPreferredH(rows.offset(model.size()) - 
+            rows.offset(last));
+    }
+    
+    private void modelInserted(int index, int count) {
+        rows.insert(index, count);
+        for(int iter = index ; iter < index + count ; iter++) {
+            rows.set(iter, estimateHeight(iter));
+        }
+    }
+    
+    /**
+     * Takes the real heights of the rows in the window once they're laid 
+     * out, text wraps to the width of the list so rows can't be measured 
+     * before that. The spacers only depend on rows outside the window so 
+     * they're not affected
+     */
+    private void measureWindow() {
+        for(int iter = first ; iter < last ; iter++) {
+            Component row = messages.getComponentAt(iter - first + 1);
+            int h = row.getHeight() + row.getStyle().getVerticalMargins();
+            if(h > 0 && h != rows.get(iter)) {
+                rows.set(iter, h);
+            }
+        }
+    }
+    
+    private void initEstimates() {
+        Style text = getUIManager().getComponentStyle("ChatText");
+        Font f = text.getFont();
+        lineHeight = f.getHeight();
+        charsPerLine = Math.max(10, getDisplayWidth() * 2 / 3 / 
+            Math.max(1, f.charWidth('n')));
+        bubblePadding = text.getVerticalPadding() + 
+            getUIManager().getComponentStyle("ChatBubbleLeft").
+                getVerticalPadding() + convertToPixels(1);
+        dayHeight = getUIManager().getComponentStyle("Day").getFont().
+            getHeight() + convertToPixels(3);
+    }
+    
+    /**
+     * A cheap guess of the height of a row that wasn't laid out yet, it's 
+     * corrected once the row enters the window
+     */
+    private int estimateHeight(int index) {
+        ChatMessage m = model.get(index);
+        int h;
+        if(m.attachments.size() > 0) {
+            h = mediaSize() + bubblePadding;
+        } else {
+            int len = m.body.get() == null ? 0 : m.body.get().length();
+            h = (1 + len / charsPerLine) * lineHeight + bubblePadding;
+            if(len >= 30) {
+                // the time goes below longer messages
+                h += lineHeight;
+            }
+        }
+        if(startsDay(index)) {
+            h += dayHeight;
+        }
+        return h;
+    }
+    
+    /**
+     * Recreates a row whose grouping might have changed because of its 
+     * neighbors
+     */
+    private void refreshRow(int index) {
+        if(index < 0 || index >= model.size()) {
+            return;
+        }
+        rows.set(index, estimateHeight(index));
+        if(index >= first && index < last) {
+            int pos = index - first + 1;
+            messages.removeComponent(messages.getComponentAt(pos));
+            messages.addComponent(pos, createRow(index));
+        }
+    }
+    
+    private Component createRow(int index) {
+        ChatMessage m = model.get(index);
+        Container row = new Container(BoxLayout.y());
+        if(startsDay(index)) {
+            row.add(createDay(m.time.get(), day(m)));
+        }
+        boolean continued = index + 1 < model.size() && 
+            !startsGroup(index + 1);
+        row.add(createBubble(m, startsGroup(index), continued).getParent());
+        return row;
+    }
+    
+    private boolean startsDay(int index) {
+        return index == 0 || 
+            day(model.get(index - 1)) != day(model.get(index));
+    }
+    
+    /**
+     * A message starts a group unless it follows a message from the same 
+     * side on the same day, only the first bubble of a group has an arrow
+     */
+    private boolean startsGroup(int index) {
+        return startsDay(index) || 
+            isLeft(model.get(index - 1)) != isLeft(model.get(index));
+    }
+    
+    private long day(ChatMessage m) {
+        return m.time.get().getTime() / DAY;
+    }
+    
+    private Component createDay(Date d, long currentDay) {
         String text;
         long t = System.currentTimeMillis() / DAY;
         if(t == currentDay) {
             text = "Today";
-            todayAdded = true;
         } else {
             if(t - 1 == currentDay) {
                 text = "Yesterday";
@@ -132,8 +539,7 @@ public class ChatForm extends Form {
             }
         }
         Label day = new Label(text.toUpperCase(), "Day");
-        addComponent(getContentPane().getComponentCount() - 1, 
-            FlowLayout.encloseCenter(day));
+        return FlowLayout.encloseCenter(day);
     }
     
     private Container createInputContainer() {
@@ -188,6 +594,7 @@ public class ChatForm extends Form {
             }
         };
         input.addDataChangedListener((i, ii) -> {
+            Server.typingTo(contact, input.getText().length() > 0);
             if(input.getText().length() == 0) {
                 microphone.setMaterialIcon(FontImage.MATERIAL_MIC);
             } else {
@@ -222,19 +629,49 @@ public class ChatForm extends Form {
     }
 
     public void addMessageToUI(ChatMessage m) {
-        if(!todayAdded) {
-            addDay(new Date(), System.currentTimeMillis() / DAY);
+        addMessageToModel(m);
+        showNewest();
+        messages.animateLayoutAndWait(100);
+        scrollToNewest();
+    }
+    
+    /**
+     * Adds a batch of incoming messages with a single layout pass
+     */
+    public void addMessagesToUI(List<ChatMessage> l) {
+        if(l.isEmpty()) {
+            return;
         }
-        addMessageToUINoAnimation(m);
-        getContentPane().animateLayoutAndWait(100);
-        getContentPane().scrollComponentToVisible(
-            getContentPane().getComponentAt(
-                getContentPane().getComponentCount() - 1));
+        for(ChatMessage m : l) {
+            addMessageToModel(m);
+        }
+        showNewest();
+        messages.animateLayoutAndWait(100);
+        scrollToNewest();
+    }
+    
+    private void addMessageToModel(ChatMessage m) {
+        model.add(m);
+        modelInserted(model.size() - 1, 1);
+        // the previous message might now continue into this one
+        refreshRow(model.size() - 2);
     }
     
-    private Component addMessageToUINoAnimation(ChatMessage m) {
-        boolean left = m.authorId.get() == null || 
+    private boolean isLeft(ChatMessage m) {
+        return m.authorId.get() == null || 
             !m.authorId.get().equals(Server.user().id.get());
+    }
+    
+    /**
+     * Creates the bubble for the message wrapped in its alignment container
+     * 
+     * @param arrow true if the bubble starts a group 
+     * @param continued true if the next bubble continues the group so this 
+     *      bubble has no bottom spacing
+     */
+    private Component createBubble(ChatMessage m, boolean arrow, 
+            boolean continued) {
+        boolean left = isLeft(m);
         String uiid = left ? "ChatBubbleLeft" : "ChatBubbleRight";
         Component cmp;
         if(m.attachments.size() == 0) {
@@ -245,23 +682,7 @@ public class ChatForm extends Form {
                 m.time.get().getTime());
         }
         ChatBubbleBorder cb = ChatBubbleBorder.create();
-        if(getContentPane().getComponentCount() > 1) {
-            Container cnt = (Container)getContentPane().
-                getComponentAt(getContentPane().getComponentCount() - 2);
-            if(cnt.getUIID().equals("Container")) {
-                Component cc = cnt.getComponentAt(0);
-                if(cc instanceof Container) {
-                    cnt = (Container)cc;
-                }
-            }
-            if(!cnt.getUIID().equals(uiid)) {
-                cb.leftArrow(left).rightArrow(!left);
-            } else {
-                Style s = cnt.getAllStyles();
-                s.setPaddingBottom(0);
-                s.setMarginBottom(0);
-            }
-        } else {
+        if(arrow) {
             cb.leftArrow(left).rightArrow(!left);
         }
         Container cnt;
@@ -271,10 +692,14 @@ public class ChatForm extends Form {
             cnt = FlowLayout.encloseRight(cmp); 
         }
         cmp.setUIID(uiid);
-        addComponent(getContentPane().getComponentCount() - 1, cnt);
         cnt.putClientProperty("message", m);
         cmp.getAllStyles().setBorder(cb);
-        return cnt;
+        if(continued) {
+            Style s = cmp.getAllStyles();
+            s.setPaddingBottom(0);
+            s.setMarginBottom(0);
+        }
+        return cmp;
     }
     
     private void addMessage(ChatMessage m) {
@@ -298,18 +723,29 @@ public class ChatForm extends Form {
         return bubble;
     }
     
+    /**
+     * The bubble shows a placeholder until the thumbnail is loaded in the 
+     * background, the full size image is never decoded on the EDT
+     */
     public Component createMediaMessage(String media, long mt) {
-        try(InputStream is = openFileInputStream(media)) {
-            int s = Math.min(getDisplayWidth(), getDisplayHeight()) / 2;
-            EncodedImage img = EncodedImage.create(is, 
-                (int)getFileLength(media));
-            Button thumb = new Button("", img.fill(s, s),"ChatText");
-            Label time = new Label(getTime(mt), "ChatTime");
-            return LayeredLayout.encloseIn(thumb, FlowLayout.encloseRightBottom(time));
-        } catch(IOException ex) {
-            log(ex);
-            return new SpanLabel("Failed to load media");
-        }
+        int s = mediaSize();
+        Button thumb = new Button("", MediaThumbnails.placeholder(s), 
+            "ChatText");
+        MediaThumbnails.load(media, s, img -> {
+            if(img != null) {
+                thumb.setIcon(img);
+            } else {
+                thumb.setText("Failed to load media");
+            }
+            thumb.repaint();
+        });
+        Label time = new Label(getTime(mt), "ChatTime");
+        return LayeredLayout.encloseIn(thumb, 
+            FlowLayout.encloseRightBottom(time));
+    }
+    
+    private int mediaSize() {
+        return Math.min(getDisplayWidth(), getDisplayHeight()) / 2;
     }
     
     public void openCamera() {
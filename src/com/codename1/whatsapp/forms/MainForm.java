@@ -28,6 +28,7 @@ import com.codename1.components.FloatingActionButton;
 import com.codename1.components.MultiButton;
 import com.codename1.ui.Button;
 import com.codename1.ui.ButtonGroup;
+import com.codename1.ui.Component;
 import com.codename1.ui.Form;
 import com.codename1.ui.Tabs;
 import com.codename1.ui.layouts.BorderLayout;
@@ -36,6 +37,7 @@ import com.codename1.ui.Container;
 import com.codename1.ui.Dialog;
 import com.codename1.ui.FontImage;
 import com.codename1.ui.Label;
+import com.codename1.ui.List;
 import com.codename1.ui.RadioButton;
 import com.codename1.ui.Toolbar;
 import com.codename1.ui.animations.CommonTransitions;
@@ -43,13 +45,14 @@ import com.codename1.ui.layouts.BoxLayout;
 import com.codename1.ui.layouts.GridLayout;
 import com.codename1.ui.layouts.LayeredLayout;
 import com.codename1.ui.table.TableLayout;
+import com.codename1.whatsapp.components.ChatListRenderer;
 import com.codename1.whatsapp.model.ChatContact;
 import com.codename1.whatsapp.model.Server;
 
 public class MainForm extends Form {
     private Tabs tabs = new Tabs();
     private CameraKit ck;
-    private Container chats;
+    private List<ChatContact> chats;
     private Container status;
     private Container calls;
     private static MainForm instance;
@@ -112,47 +115,25 @@ public class MainForm extends Form {
     }
     
     
-    public void refreshChatsContainer() {
-        Server.fetchChatList(contacts -> {
-            chats.removeAll();
-            for(ChatContact c : contacts) {
-                MultiButton chat = new MultiButton(c.name.get());
-                chat.setTextLine2(c.tagline.get());
-                if(chat.getTextLine2() == null || 
-                        chat.getTextLine2().length() == 0) {
-                    chat.setTextLine2("...");
-                }
-                chat.setIcon(c.getLargeIcon());
-                chats.add(chat);
-                chat.addActionListener(e -> new ChatForm(c, this).show());
+    /**
+     * The chats are a list bound to the chat list model, only the visible 
+     * rows are rendered and the model moves a conversation to the top as 
+     * messages arrive
+     */
+    private Component createChatsContainer() {
+        chats = new List<>(Server.chatList());
+        chats.setRenderer(new ChatListRenderer());
+        chats.setRenderingPrototype(ChatListRenderer.prototype());
+        chats.setFixedSelection(List.FIXED_NONE);
+        chats.setScrollToSelected(false);
+        chats.setItemGap(0);
+        chats.addActionListener(e -> {
+            ChatContact c = chats.getSelectedItem();
+            if(c != null) {
+                new ChatForm(c, this).show();
             }
-
-            chats.revalidate();
         });
         
-        // Useful for testing the folding animation
-        /*for(int iter = 0 ; iter < 100 ; iter++) {
-            ChatContact c = new ChatContact().
-                name.set("Contact " + iter).
-                tagline.set("Tagline...");
-            MultiButton chat = new MultiButton(c.name.get());
-            chat.setTextLine2(c.tagline.get());
-            if(chat.getTextLine2() == null || 
-                    chat.getTextLine2().length() == 0) {
-                chat.setTextLine2("...");
-            }
-            chat.setIcon(c.getLargeIcon());
-            chats.add(chat);
-        }
-        chats.revalidate();*/
-    }
-    
-    private Container createChatsContainer() {
-        chats = new Container(BoxLayout.y());
-        chats.setScrollableY(true);
-
-        refreshChatsContainer();
-        
         FloatingActionButton fab = FloatingActionButton.
                 createFAB(FontImage.MATERIAL_CHAT);
         fab.addActionListener(e -> new NewMessageForm().show());
@@ -210,7 +191,7 @@ public class MainForm extends Form {
         dlg.show(top, bottom, left, 0);
     }
     
-    private Container createTitleComponent(Container... scrollables) {
+    private Container createTitleComponent(Component... scrollables) {
         Label title = new Label("WhatsApp", "Title");
         Container titleArea;
         if(title.getUnselectedStyle().getAlignment() == LEFT) {
@@ -280,7 +261,7 @@ public class MainForm extends Form {
     }
     
     private void bindFolding(Container titleArea, int titleHeight, 
-            Container... scrollables) {
+            Component... scrollables) {
         addPointerReleasedListener(e -> {
             if(titleArea.getHeight() != titleHeight && 
                         titleArea.getHeight() != 0) {
@@ -292,7 +273,7 @@ public class MainForm extends Form {
                 titleArea.getParent().animateLayout(100);
             }
         });
-        for(Container c : scrollables) {
+        for(Component c : scrollables) {
             c.addScrollListener((scrollX, scrollY, oldscrollX,
                 oldscrollY) -> {
                 // special case for tensile drag
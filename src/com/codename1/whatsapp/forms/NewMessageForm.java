@@ -5,6 +5,8 @@ import com.codename1.components.ToastBar;
 import com.codename1.ui.Form;
 import static com.codename1.ui.CN.*;
 import com.codename1.ui.FontImage;
+import com.codename1.ui.Graphics;
+import com.codename1.ui.Image;
 import com.codename1.ui.layouts.BoxLayout;
 import com.codename1.whatsapp.model.ChatContact;
 import com.codename1.whatsapp.model.Server;
@@ -25,30 +27,34 @@ public class NewMessageForm extends Form {
         add(newContact);
 
         Server.fetchContacts(lst -> {
+            Server.discoverContacts(lst);
             for(ChatContact c : lst) {
-                MultiButton mb = new MultiButton(c.name.get());
+                MultiButton mb = new MultiButton(c.name.get()) {
+                    @Override
+                    public void paint(Graphics g) {
+                        // asking for the icon whenever the row is drawn 
+                        // keeps the rows on the screen first in line for 
+                        // the avatar loader
+                        Image icon = c.getSmallIcon();
+                        if(icon != getIcon()) {
+                            setIcon(icon);
+                        }
+                        super.paint(g);
+                    }
+                };
                 mb.setTextLine2(c.tagline.get());
                 mb.setIcon(c.getSmallIcon());
-                c.photo.addChangeListener(p -> 
-                    mb.setIcon(c.getSmallIcon()));
-                mb.addActionListener(e -> {
-                    if(c.id.get() == null) {
-                        Server.findRegisteredUser(
-                                c.phone.get(), contact -> {
-                            if(contact == null) {
-                                current.showBack();
-                                callSerially(() -> 
-                                    ToastBar.showErrorMessage(
-                                        "Contact isn't registered"));
-                                return;
-                            }
-                            c.id.set(contact.id.get());
-                            Server.saveContacts();
-                        });
-                        return;
-                    }
-                    new ChatForm(c, current).show();
-                });
+                mb.addActionListener(e -> 
+                    Server.resolveContact(c, contact -> {
+                        if(contact == null) {
+                            current.showBack();
+                            callSerially(() -> 
+                                ToastBar.showErrorMessage(
+                                    "Contact isn't registered"));
+                            return;
+                        }
+                        new ChatForm(contact, current).show();
+                    }));
                 add(mb);
             }
             revalidate();
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Codename One through http://www.codenameone.com/ if you
+ * need additional information or have any questions.
+ */
+
+package com.codename1.whatsapp.model;
+
+import com.codename1.util.OnComplete;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Coalesces delivery acknowledgements so a burst of incoming messages is
+ * acknowledged by one request instead of a request per message. A batch is
+ * sent once the window elapses after its first id or as soon as it is full.
+ */
+public class AckBatcher {
+    private static final int WINDOW = 300;
+    private static final int MAX_BATCH = 100;
+
+    private final Timer timer;
+    private final OnComplete<List<String>> sender;
+    private List<String> pending = new ArrayList<>();
+    private TimerTask flushTask;
+
+    /**
+     * @param timer the timer used to schedule the end of the window
+     * @param sender invoked with every batch of message ids, might be invoked
+     *      on the timer thread
+     */
+    public AckBatcher(Timer timer, OnComplete<List<String>> sender) {
+        this.timer = timer;
+        this.sender = sender;
+    }
+
+    public void add(String messageId) {
+        List<String> batch = null;
+        synchronized(this) {
+            pending.add(messageId);
+            if(pending.size() >= MAX_BATCH) {
+                batch = takeBatch();
+            } else {
+                if(flushTask == null) {
+                    flushTask = new TimerTask() {
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+                    };
+                    timer.schedule(flushTask, WINDOW);
+                }
+            }
+        }
+        if(batch != null) {
+            sender.completed(batch);
+        }
+    }
+
+    /**
+     * Sends the pending acknowledgements immediately
+     */
+    public void flush() {
+        List<String> batch;
+        synchronized(this) {
+            if(pending.isEmpty()) {
+                return;
+            }
+            batch = takeBatch();
+        }
+        sender.completed(batch);
+    }
+
+    private List<String> takeBatch() {
+        if(flushTask != null) {
+            flushTask.cancel();
+            flushTask = null;
+        }
+        List<String> batch = pending;
+        pending = new ArrayList<>();
+        return batch;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Codename One through http://www.codenameone.com/ if you
+ * need additional information or have any questions.
+ */
+
+package com.codename1.whatsapp.model;
+
+import com.codename1.io.Log;
+import com.codename1.io.Storage;
+import com.codename1.ui.EncodedImage;
+import com.codename1.ui.Image;
+import com.codename1.util.EasyThread;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shared cache of masked contact avatars keyed by contact and size. The
+ * images in memory are bounded by a byte budget and the least recently used
+ * ones are evicted first. Every masked avatar is also saved to storage so it
+ * can be shown on the next launch without loading and masking the photo.
+ */
+public class AvatarCache {
+    private static final int BUDGET = 4 * 1024 * 1024;
+    private static final String PREFIX = "avatar-";
+
+    private static final LinkedHashMap<String, Image> cache =
+        new LinkedHashMap<>(64, 0.75f, true);
+    
+    // avatars we know aren't in storage, spares a file check whenever a 
+    // contact without a photo is drawn
+    private static final Set<String> missing = new HashSet<>();
+    private static int bytes;
+    private static EasyThread writer;
+
+    private AvatarCache() {
+    }
+
+    /**
+     * Returns the avatar if it's in memory, this is safe to invoke while 
+     * painting
+     *
+     * @param key the key of the contact
+     * @param size the width and height of the avatar in pixels
+     * @return the masked avatar or null if it isn't in memory
+     */
+    public static synchronized Image get(String key, int size) {
+        return cache.get(key + "@" + size);
+    }
+
+    /**
+     * Returns the avatar from memory or reads it from storage, this reads 
+     * storage and shouldn't be invoked on the EDT
+     *
+     * @param key the key of the contact
+     * @param size the width and height of the avatar in pixels
+     * @return the masked avatar or null if it wasn't cached
+     */
+    public static Image load(String key, int size) {
+        String k = key + "@" + size;
+        synchronized(AvatarCache.class) {
+            Image img = cache.get(k);
+            if(img != null || missing.contains(k)) {
+                return img;
+            }
+        }
+        String file = storageName(k);
+        Storage s = Storage.getInstance();
+        if(!s.exists(file)) {
+            synchronized(AvatarCache.class) {
+                missing.add(k);
+            }
+            return null;
+        }
+        try(InputStream is = s.createInputStream(file)) {
+            Image img = EncodedImage.create(is);
+            add(k, img);
+            return img;
+        } catch(IOException err) {
+            Log.e(err);
+            s.deleteStorageFile(file);
+            return null;
+        }
+    }
+
+    /**
+     * Adds the avatar to the cache and saves it in the background
+     *
+     * @param key the key of the contact
+     * @param size the width and height of the avatar in pixels
+     * @param img the masked avatar
+     */
+    public static void put(String key, int size, Image img) {
+        String k = key + "@" + size;
+        add(k, img);
+        background(() -> {
+            try(OutputStream os = Storage.getInstance().
+                    createOutputStream(storageName(k))) {
+                os.write(EncodedImage.createFromImage(img, false).
+                    getImageData());
+            } catch(IOException err) {
+                Log.e(err);
+            }
+        });
+    }
+
+    /**
+     * Drops the avatars of the contact from memory and storage, invoked when
+     * the photo of the contact changes
+     *
+     * @param key the key of the contact
+     * @param sizes the sizes in which avatars might have been cached
+     */
+    public static void invalidate(String key, int... sizes) {
+        for(int size : sizes) {
+            String k = key + "@" + size;
+            synchronized(AvatarCache.class) {
+                Image img = cache.remove(k);
+                if(img != null) {
+                    bytes -= sizeOf(img);
+                }
+                missing.add(k);
+            }
+            // ordered after pending writes so a stale avatar isn't saved
+            // after it was deleted
+            background(() -> 
+                Storage.getInstance().deleteStorageFile(storageName(k)));
+        }
+    }
+
+    private static synchronized void background(Runnable r) {
+        if(writer == null) {
+            writer = EasyThread.start("Avatar Writer");
+        }
+        writer.run(r);
+    }
+
+    private static synchronized void add(String k, Image img) {
+        missing.remove(k);
+        Image old = cache.put(k, img);
+        if(old != null) {
+            bytes -= sizeOf(old);
+        }
+        bytes += sizeOf(img);
+        Iterator<Map.Entry<String, Image>> it = cache.entrySet().iterator();
+        while(bytes > BUDGET && it.hasNext()) {
+            Map.Entry<String, Image> e = it.next();
+            if(e.getValue() == img) {
+                continue;
+            }
+            bytes -= sizeOf(e.getValue());
+            it.remove();
+        }
+    }
+
+    private static int sizeOf(Image img) {
+        return img.getWidth() * img.getHeight() * 4;
+    }
+
+    private static String storageName(String k) {
+        StringBuilder sb = new StringBuilder(PREFIX);
+        for(int iter = 0 ; iter < k.length() ; iter++) {
+            char c = k.charAt(iter);
+            if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+                    (c >= '0' && c <= '9') || c == '-') {
+                sb.append(c);
+            } else {
+                sb.append('_');
+            }
+        }
+        return sb.append(".png").toString();
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Codename One through http://www.codenameone.com/ if you
+ * need additional information or have any questions.
+ */
+
+package com.codename1.whatsapp.model;
+
+import com.codename1.io.Log;
+import com.codename1.io.Storage;
+import com.codename1.io.Util;
+import static com.codename1.ui.CN.*;
+import com.codename1.ui.EncodedImage;
+import com.codename1.ui.Form;
+import com.codename1.util.EasyThread;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads the saved avatars and photos of contacts from storage when their 
+ * avatar is first drawn, so the EDT never waits for storage. The
+ * most recent request is served first so rows that were just drawn win over
+ * rows that scrolled by, and a request that wasn't repeated for a while is
+ * dropped since its row is no longer on the screen.
+ */
+public class AvatarLoader {
+    private static final long STALE = 1000;
+
+    private static final Map<ChatContact, Request> requests = new HashMap<>();
+    private static final Set<ChatContact> noPhoto = new HashSet<>();
+    private static EasyThread thread;
+    private static boolean running;
+    private static long sequence;
+
+    private static class Request {
+        long sequence;
+        long time;
+        final Set<Integer> sizes = new HashSet<>();
+    }
+
+    private AvatarLoader() {
+    }
+
+    /**
+     * Asks for the avatar of the contact to be loaded, this is invoked
+     * whenever a placeholder is drawn for the contact
+     *
+     * @param c the contact
+     * @param size the size of the avatar that was drawn
+     */
+    public static void request(ChatContact c, int size) {
+        synchronized(AvatarLoader.class) {
+            if(noPhoto.contains(c)) {
+                return;
+            }
+            Request r = requests.get(c);
+            if(r == null) {
+                r = new Request();
+                requests.put(c, r);
+            }
+            sequence++;
+            r.sequence = sequence;
+            r.sizes.add(size);
+            r.time = System.currentTimeMillis();
+            if(running) {
+                return;
+            }
+            running = true;
+            if(thread == null) {
+                thread = EasyThread.start("Avatar Loader");
+            }
+        }
+        thread.run(() -> drain());
+    }
+
+    /**
+     * Saves the photo of the contact where the loader will find it
+     *
+     * @param c the contact
+     * @param img the photo
+     */
+    public static void savePhoto(ChatContact c, EncodedImage img) {
+        String key = c.avatarKey();
+        if(key == null) {
+            return;
+        }
+        try(OutputStream os = Storage.getInstance().
+                createOutputStream(photoFile(key))) {
+            os.write(img.getImageData());
+        } catch(IOException err) {
+            Log.e(err);
+            return;
+        }
+        synchronized(AvatarLoader.class) {
+            noPhoto.remove(c);
+        }
+    }
+
+    private static void drain() {
+        while(true) {
+            ChatContact next = null;
+            Request request;
+            synchronized(AvatarLoader.class) {
+                long now = System.currentTimeMillis();
+                long best = -1;
+                Iterator<Map.Entry<ChatContact, Request>> it =
+                    requests.entrySet().iterator();
+                while(it.hasNext()) {
+                    Map.Entry<ChatContact, Request> e = it.next();
+                    if(now - e.getValue().time > STALE) {
+                        // the row scrolled away before we got to it
+                        it.remove();
+                        continue;
+                    }
+                    if(e.getValue().sequence > best) {
+                        best = e.getValue().sequence;
+                        next = e.getKey();
+                    }
+                }
+                if(next == null) {
+                    running = false;
+                    return;
+                }
+                request = requests.remove(next);
+            }
+            load(next, request.sizes);
+        }
+    }
+
+    private static void load(ChatContact c, Set<Integer> sizes) {
+        // the masked avatars saved by an earlier run spare loading and 
+        // masking the photo
+        String key = c.avatarKey();
+        boolean saved = key != null;
+        for(int size : sizes) {
+            if(saved && AvatarCache.load(key, size) == null) {
+                saved = false;
+            }
+        }
+        if(saved) {
+            callSerially(() -> repaint());
+            return;
+        }
+        EncodedImage img = readPhoto(c);
+        if(img == null) {
+            synchronized(AvatarLoader.class) {
+                noPhoto.add(c);
+            }
+            return;
+        }
+        callSerially(() -> {
+            c.photo.set(img);
+            repaint();
+        });
+    }
+
+    private static void repaint() {
+        Form f = getCurrentForm();
+        if(f != null) {
+            f.repaint();
+        }
+    }
+
+    private static EncodedImage readPhoto(ChatContact c) {
+        Storage s = Storage.getInstance();
+        List<String> files = new ArrayList<>();
+        String primary = c.avatarKey();
+        if(primary == null) {
+            return null;
+        }
+        files.add(photoFile(primary));
+
+        // photos saved before the contact got its server id and photos
+        // saved by older versions under the display name
+        if(c.localId.get() != null) {
+            files.add(photoFile("local-" + c.localId.get()));
+        }
+        String phone = ContactRegistry.normalizePhone(c.phone.get());
+        if(phone != null) {
+            files.add(photoFile("phone-" + phone));
+        }
+        if(c.name.get() != null) {
+            files.add(c.name.get() + ".jpg");
+        }
+        for(String f : files) {
+            if(!s.exists(f)) {
+                continue;
+            }
+            try(InputStream is = s.createInputStream(f)) {
+                byte[] data = Util.readInputStream(is);
+                if(!f.equals(files.get(0))) {
+                    try(OutputStream os = s.createOutputStream(files.get(0))) {
+                        os.write(data);
+                    }
+                    s.deleteStorageFile(f);
+                }
+                return EncodedImage.create(data);
+            } catch(IOException err) {
+                Log.e(err);
+            }
+        }
+        return null;
+    }
+
+    private static String photoFile(String key) {
+        StringBuilder sb = new StringBuilder("photo-");
+        for(int iter = 0 ; iter < key.length() ; iter++) {
+            char c = key.charAt(iter);
+            if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+                    (c >= '0' && c <= '9') || c == '-') {
+                sb.append(c);
+            } else {
+                sb.append('_');
+            }
+        }
+        return sb.append(".jpg").toString();
+    }
+}
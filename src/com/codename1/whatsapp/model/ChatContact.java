@@ -80,6 +80,43 @@ public class ChatContact implements PropertyBusinessObject {
 
     public ChatContact() {
         idx.setExcludeFromJSON(photo, true);
+        // messages are persisted separately by the MessageStore
+        idx.setExcludeFromJSON(chats, true);
+        photo.addChangeListener(p -> {
+            // the first photo we see is the one the cached avatars were 
+            // made from, later changes replace it
+            if(lastPhoto != null) {
+                String key = avatarKey();
+                if(key != null) {
+                    AvatarCache.invalidate(key, 
+                        convertToPixels(IMAGE_SIZES[SMALL_IMAGE]), 
+                        convertToPixels(IMAGE_SIZES[LARGE_IMAGE]));
+                }
+            }
+            lastPhoto = photo.get();
+        });
+    }
+    
+    private Image lastPhoto;
+    
+    /**
+     * The key under which the avatars of this contact are cached
+     * 
+     * @return the server id, the local id or the phone of the contact or 
+     *      null if we can't identify the contact
+     */
+    public String avatarKey() {
+        if(id.get() != null) {
+            return id.get();
+        }
+        if(localId.get() != null) {
+            return "local-" + localId.get();
+        }
+        String p = ContactRegistry.normalizePhone(phone.get());
+        if(p != null) {
+            return "phone-" + p;
+        }
+        return null;
     }
     
     private static final int SMALL_IMAGE = 0;
@@ -123,32 +160,34 @@ public class ChatContact implements PropertyBusinessObject {
                 i.applyMask(maskObject[offset]), false);
         }
         
+        int size = maskImage[offset].getWidth();
+        String key = avatarKey();
+        if(key != null) {
+            Image cached = AvatarCache.get(key, size);
+            if(cached != null) {
+                return cached;
+            }
+        }
         if(photo.get() == null) {
+            // the saved avatar or the photo is loaded from storage in the 
+            // background once it's drawn
+            AvatarLoader.request(this, size);
             return placeholder[offset];
         }
-        return photo.get().
-            fill(maskImage[offset].getWidth(), 
-                maskImage[offset].getHeight()).
+        Image masked = photo.get().
+            fill(size, maskImage[offset].getHeight()).
             applyMask(maskObject[offset]);
+        if(key != null) {
+            AvatarCache.put(key, size, masked);
+        }
+        return masked;
     }
     
-    
-    private Image smallIcon;
-    private Image largeIcon;
-
     public Image getSmallIcon() {
-        if(smallIcon != null) {
-            return smallIcon;
-        }
-        smallIcon = getImage(SMALL_IMAGE);
-        return smallIcon;
+        return getImage(SMALL_IMAGE);
     }
     
     public Image getLargeIcon() {
-        if(largeIcon != null) {
-            return largeIcon;
-        }
-        largeIcon = getImage(LARGE_IMAGE);
-        return largeIcon;
+        return getImage(LARGE_IMAGE);
     }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Codename One through http://www.codenameone.com/ if you
+ * need additional information or have any questions.
+ */
+
+package com.codename1.whatsapp.model;
+
+import static com.codename1.ui.CN.*;
+import com.codename1.ui.list.DefaultListModel;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The conversations that have activity, newest first. The model tracks the
+ * last activity time of every contact so a new message moves a single row,
+ * a move is fired as a removal followed by an addition and changes to the
+ * name or tagline are fired as a change of the row. The model must only be
+ * used on the EDT, changes made on other threads are applied there.
+ */
+public class ChatListModel extends DefaultListModel<ChatContact> {
+    private final Map<ChatContact, Long> keys = new HashMap<>();
+    private final Set<ChatContact> tracked = new HashSet<>();
+
+    public ChatListModel(ContactRegistry contacts) {
+        contacts.addContactListener(c -> onEdt(() -> track(c)));
+        for(ChatContact c : contacts.snapshot()) {
+            track(c);
+        }
+    }
+
+    private static void onEdt(Runnable r) {
+        if(isEdt()) {
+            r.run();
+        } else {
+            callSerially(r);
+        }
+    }
+
+    private void track(ChatContact c) {
+        if(!tracked.add(c)) {
+            return;
+        }
+        c.lastActivityTime.addChangeListener(p -> onEdt(() -> update(c)));
+        c.name.addChangeListener(p -> onEdt(() -> changed(c)));
+        c.tagline.addChangeListener(p -> onEdt(() -> changed(c)));
+        update(c);
+    }
+
+    private void update(ChatContact c) {
+        Long old = keys.get(c);
+        Date d = c.lastActivityTime.get();
+        if(old != null) {
+            if(d != null && d.getTime() == old) {
+                return;
+            }
+            removeItem(indexOf(c, old));
+            keys.remove(c);
+        }
+        if(d == null) {
+            return;
+        }
+        long key = d.getTime();
+        int index = firstAtOrBefore(key);
+        keys.put(c, key);
+        addItemAtIndex(c, index);
+    }
+
+    private void changed(ChatContact c) {
+        Long key = keys.get(c);
+        if(key != null) {
+            setItem(indexOf(c, key), c);
+        }
+    }
+
+    private long keyAt(int index) {
+        return keys.get(getItemAt(index));
+    }
+
+    /**
+     * Binary search for the first row whose activity isn't newer than the
+     * given time
+     */
+    private int firstAtOrBefore(long key) {
+        int low = 0;
+        int high = getSize();
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(keyAt(mid) > key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int indexOf(ChatContact c, long key) {
+        int size = getSize();
+        for(int iter = firstAtOrBefore(key) ; iter < size &&
+                keyAt(iter) == key ; iter++) {
+            if(getItemAt(iter) == c) {
+                return iter;
+            }
+        }
+        return getItemIndex(c);
+    }
+}
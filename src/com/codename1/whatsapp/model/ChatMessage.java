@@ -36,6 +36,13 @@ import java.util.Date;
  */
 public class ChatMessage implements PropertyBusinessObject {
     public final Property<String, ChatMessage> id = new Property<>("id");
+    
+    /**
+     * Client generated id used to correlate a message we sent with the 
+     * server echo that assigns its id
+     */
+    public final Property<String, ChatMessage> localId = 
+        new Property<>("localId");
     public final Property<String, ChatMessage> authorId = 
         new Property<>("authorId");
     public final Property<String, ChatMessage> authorPhone = 
@@ -54,7 +61,7 @@ public class ChatMessage implements PropertyBusinessObject {
         new BooleanProperty<>("typing");
     
     private final PropertyIndex idx = new PropertyIndex(this, 
-        "ChatMessage", id, authorId, authorPhone, sentTo, time, 
+        "ChatMessage", id, localId, authorId, authorPhone, sentTo, time, 
         body, attachments, viewedBy, typing);
     
     @Override
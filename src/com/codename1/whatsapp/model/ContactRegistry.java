@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Codename One through http://www.codenameone.com/ if you
+ * need additional information or have any questions.
+ */
+
+package com.codename1.whatsapp.model;
+
+import com.codename1.util.OnComplete;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The list of contacts together with lookup tables by server id, phone and
+ * local id. The tables track changes to these properties so a contact that
+ * is resolved after it was added can still be found in constant time.
+ */
+public class ContactRegistry {
+    private final List<ChatContact> contacts = new ArrayList<>();
+    private final Map<String, ChatContact> byId = new HashMap<>();
+    private final Map<String, ChatContact> byPhone = new HashMap<>();
+    private final Map<String, ChatContact> byLocalId = new HashMap<>();
+    private final Map<ChatContact, String[]> indexedKeys = new HashMap<>();
+    private final List<OnComplete<ChatContact>> addListeners = 
+        new ArrayList<>();
+
+    public ContactRegistry() {
+    }
+
+    public ContactRegistry(List<ChatContact> l) {
+        for(ChatContact c : l) {
+            add(c);
+        }
+    }
+
+    /**
+     * Strips formatting from a phone number so different representations of
+     * the same number map to the same key
+     *
+     * @param phone the phone number as entered
+     * @return the digits of the number or null
+     */
+    public static String normalizePhone(String phone) {
+        if(phone == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(phone.length());
+        for(int iter = 0 ; iter < phone.length() ; iter++) {
+            char c = phone.charAt(iter);
+            if(c >= '0' && c <= '9') {
+                sb.append(c);
+            }
+        }
+        if(sb.length() == 0) {
+            return null;
+        }
+        return sb.toString();
+    }
+
+    public synchronized void add(ChatContact c) {
+        contacts.add(c);
+        index(c);
+        c.id.addChangeListener(p -> reindex(c));
+        c.phone.addChangeListener(p -> reindex(c));
+        c.localId.addChangeListener(p -> reindex(c));
+        for(OnComplete<ChatContact> l : addListeners) {
+            l.completed(c);
+        }
+    }
+    
+    /**
+     * Finds the contact that represents the user or adds the user, in one 
+     * step so two threads resolving the same user can't both add it. A 
+     * contact from the address book that matches the phone of the user 
+     * gets the id of the user.
+     *
+     * @param user a user with a server id
+     * @return the contact in the registry
+     */
+    public synchronized ChatContact findOrAdd(ChatContact user) {
+        ChatContact known = findById(user.id.get());
+        if(known != null) {
+            return known;
+        }
+        known = findByPhone(user.phone.get());
+        if(known != null) {
+            known.id.set(user.id.get());
+            return known;
+        }
+        add(user);
+        return user;
+    }
+    
+    /**
+     * Invoked with every contact added to the registry, on the thread that
+     * added it
+     */
+    public synchronized void addContactListener(OnComplete<ChatContact> l) {
+        addListeners.add(l);
+    }
+
+    public synchronized ChatContact findById(String id) {
+        if(id == null) {
+            return null;
+        }
+        return byId.get(id);
+    }
+
+    public synchronized ChatContact findByPhone(String phone) {
+        String p = normalizePhone(phone);
+        if(p == null) {
+            return null;
+        }
+        return byPhone.get(p);
+    }
+
+    public synchronized ChatContact findByLocalId(String localId) {
+        if(localId == null) {
+            return null;
+        }
+        return byLocalId.get(localId);
+    }
+
+    /**
+     * A copy of the contacts that is safe to iterate while contacts are 
+     * added on other threads
+     */
+    public synchronized List<ChatContact> snapshot() {
+        return new ArrayList<>(contacts);
+    }
+
+    public synchronized int size() {
+        return contacts.size();
+    }
+
+    private synchronized void reindex(ChatContact c) {
+        unindex(c);
+        index(c);
+    }
+
+    private void index(ChatContact c) {
+        String[] keys = {
+            c.id.get(), normalizePhone(c.phone.get()), c.localId.get()
+        };
+        putIfAbsent(byId, keys[0], c);
+        putIfAbsent(byPhone, keys[1], c);
+        putIfAbsent(byLocalId, keys[2], c);
+        indexedKeys.put(c, keys);
+    }
+
+    private void unindex(ChatContact c) {
+        String[] keys = indexedKeys.remove(c);
+        if(keys != null) {
+            removeIfMapped(byId, keys[0], c);
+            removeIfMapped(byPhone, keys[1], c);
+            removeIfMapped(byLocalId, keys[2], c);
+        }
+    }
+
+    private static void putIfAbsent(Map<String, ChatContact> m, String key,
+            ChatContact c) {
+        if(key != null && !m.containsKey(key)) {
+            m.put(key, c);
+        }
+    }
+
+    private static void removeIfMapped(Map<String, ChatContact> m,
+            String key, ChatContact c) {
+        if(key != null && m.get(key) == c) {
+            m.remove(key);
+        }
+    }
+}
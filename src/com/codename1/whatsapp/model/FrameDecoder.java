@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Codename One through http://www.codenameone.com/ if you
+ * need additional information or have any questions.
+ */
+
+package com.codename1.whatsapp.model;
+
+import com.codename1.io.JSONParser;
+import com.codename1.io.Log;
+import com.codename1.util.EasyThread;
+import com.codename1.util.OnComplete;
+import com.codename1.util.regex.StringReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses incoming WebSocket frames on a dedicated thread. Frames that arrive
+ * while a batch is being handled are queued and handled together as the next
+ * batch, so a backlog costs one hand off per batch rather than per frame.
+ * Frames with a {@code t} type are protocol frames and are handed over
+ * separately, in order with the messages around them. Binary frames use the
+ * {@link WireCodec} encoding and are handled the same way.
+ */
+public class FrameDecoder {
+    private final EasyThread thread;
+    private final OnComplete<List<ChatMessage>> handler;
+    private final OnComplete<Map> controlHandler;
+    private final JSONParser parser = new JSONParser();
+    private List<Object> frames = new ArrayList<>();
+    private boolean scheduled;
+
+    /**
+     * @param name the name of the decoder thread
+     * @param handler invoked on the decoder thread with every decoded batch
+     * @param controlHandler invoked on the decoder thread with the parsed 
+     *      protocol frames
+     */
+    public FrameDecoder(String name, OnComplete<List<ChatMessage>> handler, 
+            OnComplete<Map> controlHandler) {
+        this.handler = handler;
+        this.controlHandler = controlHandler;
+        thread = EasyThread.start(name);
+    }
+
+    /**
+     * Queues a frame for decoding, this can be invoked from any thread
+     *
+     * @param frame the JSON text of the frame
+     */
+    public void add(String frame) {
+        queue(frame);
+    }
+
+    /**
+     * Queues a binary frame for decoding, this can be invoked from any thread
+     *
+     * @param frame the {@link WireCodec} encoded frame
+     */
+    public void addBinary(byte[] frame) {
+        queue(frame);
+    }
+
+    private void queue(Object frame) {
+        synchronized(this) {
+            frames.add(frame);
+            if(scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        thread.run(() -> decodeBatch());
+    }
+
+    private void decodeBatch() {
+        List<Object> batch;
+        synchronized(this) {
+            batch = frames;
+            frames = new ArrayList<>();
+            scheduled = false;
+        }
+        JSONParser.setUseBoolean(true);
+        JSONParser.setUseLongs(true);
+        List<ChatMessage> messages = new ArrayList<>(batch.size());
+        for(Object frame : batch) {
+            try {
+                Object decoded;
+                if(frame instanceof byte[]) {
+                    decoded = WireCodec.decode((byte[])frame);
+                } else {
+                    Map m = parser.parseJSON(new StringReader((String)frame));
+                    Object typing = m.get("typing");
+                    if(m.get("t") != null) {
+                        decoded = m;
+                    } else if(typing != null) {
+                        // typing frames are frequent and only need two 
+                        // fields, skip the generic property mapping
+                        ChatMessage c = new ChatMessage();
+                        c.authorId.set((String)m.get("authorId"));
+                        c.typing.set(Boolean.TRUE.equals(typing));
+                        decoded = c;
+                    } else {
+                        ChatMessage c = new ChatMessage();
+                        c.getPropertyIndex().populateFromMap(m, 
+                            ChatMessage.class);
+                        decoded = c;
+                    }
+                }
+                if(decoded instanceof Map) {
+                    if(!messages.isEmpty()) {
+                        handler.completed(messages);
+                        messages = new ArrayList<>();
+                    }
+                    controlHandler.completed((Map)decoded);
+                    continue;
+                }
+                messages.add((ChatMessage)decoded);
+            } catch(IOException err) {
+                // a broken frame shouldn't stall the rest of the batch
+                Log.e(err);
+            }
+        }
+        if(!messages.isEmpty()) {
+            handler.completed(messages);
+        }
+    }
+}
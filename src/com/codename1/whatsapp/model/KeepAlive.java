@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Codename One through http://www.codenameone.com/ if you
+ * need additional information or have any questions.
+ */
+
+
+package com.codename1.whatsapp.model;
+
+import com.codename1.io.NetworkManager;
+import com.codename1.io.Preferences;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Keeps the WebSocket from being closed by proxies and NAT gateways that 
+ * drop idle connections. A ping is sent only after a full interval without 
+ * traffic in either direction so an active conversation costs no extra 
+ * frames or radio wakeups. The interval starts from a default for the type 
+ * of network, shrinks when the connection drops after being idle for less 
+ * than the interval and grows back slowly while it survives, the learned 
+ * interval is kept per network type.
+ */
+public class KeepAlive {
+    // cloudflare closes a WebSocket after 100 seconds without traffic
+    // https://community.cloudflare.com/t/cloudflare-websocket-timeout/5865/3
+    private static final long MAX_INTERVAL = 80000;
+    
+    // carrier NAT gateways are often less patient than a home router
+    private static final long CELLULAR_INTERVAL = 45000;
+    private static final long MIN_INTERVAL = 15000;
+    
+    // pings that must get through before the interval grows again
+    private static final int STABLE_PINGS = 10;
+    
+    private final Timer timer;
+    private final Runnable ping;
+    private volatile long lastTraffic;
+    private TimerTask task;
+    private String network;
+    private long interval;
+    private long maxInterval;
+    private int pings;
+
+    /**
+     * @param timer the timer on which the pings are scheduled
+     * @param ping sends a ping frame, invoked on the timer thread
+     */
+    public KeepAlive(Timer timer, Runnable ping) {
+        this.timer = timer;
+        this.ping = ping;
+    }
+
+    /**
+     * Marks traffic on the connection, this is invoked for every frame so it 
+     * only records the time
+     */
+    public void traffic() {
+        lastTraffic = System.currentTimeMillis();
+    }
+
+    /**
+     * Starts pinging a connection that was just opened
+     */
+    public synchronized void start() {
+        cancel();
+        network = currentNetwork();
+        maxInterval = "wifi".equals(network) ? MAX_INTERVAL : 
+            CELLULAR_INTERVAL;
+        interval = Preferences.get("KeepAlive." + network, maxInterval);
+        pings = 0;
+        traffic();
+        schedule(interval);
+    }
+
+    /**
+     * Stops pinging when we close the connection ourselves
+     */
+    public synchronized void stop() {
+        cancel();
+    }
+
+    /**
+     * Invoked when the connection closed, if it was idle for a while before 
+     * that a gateway probably timed it out and we should ping sooner
+     */
+    public synchronized void disconnected() {
+        if(task == null) {
+            // closed by us or never opened
+            return;
+        }
+        cancel();
+        long idle = System.currentTimeMillis() - lastTraffic;
+        if(idle >= MIN_INTERVAL && idle <= interval) {
+            // a drop right after traffic is a network failure rather than 
+            // an idle timeout, otherwise stay well below what we observed
+            interval = Math.max(MIN_INTERVAL, idle * 3 / 4);
+            Preferences.set("KeepAlive." + network, interval);
+        }
+    }
+
+    private void cancel() {
+        if(task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    private void schedule(long delay) {
+        task = new TimerTask() {
+            @Override
+            public void run() {
+                tick(this);
+            }
+        };
+        timer.schedule(task, delay);
+    }
+
+    private void tick(TimerTask current) {
+        synchronized(this) {
+            if(task != current) {
+                // cancelled while it was about to run
+                return;
+            }
+            long idle = System.currentTimeMillis() - lastTraffic;
+            if(idle < interval) {
+                // messages kept the connection alive, check again one 
+                // interval after the last one
+                schedule(interval - idle);
+                return;
+            }
+            pings++;
+            if(pings >= STABLE_PINGS && interval < maxInterval) {
+                pings = 0;
+                interval = Math.min(maxInterval, interval + interval / 10);
+                Preferences.set("KeepAlive." + network, interval);
+            }
+            schedule(interval);
+        }
+        ping.run();
+    }
+
+    private static String currentNetwork() {
+        NetworkManager n = NetworkManager.getInstance();
+        if(n.isAPSupported()) {
+            String ap = n.getCurrentAccessPoint();
+            if(ap != null) {
+                switch(n.getAPType(ap)) {
+                    case NetworkManager.ACCESS_POINT_TYPE_WLAN:
+                    case NetworkManager.ACCESS_POINT_TYPE_CORPORATE:
+                        return "wifi";
+                    case NetworkManager.ACCESS_POINT_TYPE_NETWORK2G:
+                    case NetworkManager.ACCESS_POINT_TYPE_NETWORK3G:
+                        return "cellular";
+                }
+            }
+        }
+        // platforms that don't tell us the network get the interval that 
+        // worked before this class existed
+        return "wifi";
+    }
+}
@@ -0,0 +1,635 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Codename One through http://www.codenameone.com/ if you
+ * need additional information or have any questions.
+ */
+
+package com.codename1.whatsapp.model;
+
+import com.codename1.io.FileSystemStorage;
+import com.codename1.io.JSONParser;
+import com.codename1.io.Log;
+import com.codename1.io.Util;
+import com.codename1.util.StringUtil;
+import com.codename1.util.regex.StringReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append only storage for the messages of every conversation. Each
+ * conversation is a directory of numbered log segments, a new message is a
+ * single line appended to the newest segment and an edit is a line that
+ * supersedes an older entry. Superseded entries are dropped when the
+ * conversation is compacted. History can be read in pages from the newest
+ * segment backwards so opening a conversation doesn't depend on its length.
+ * This class isn't thread safe and should be used from the contacts thread.
+ */
+public class MessageStore {
+    private static final int SEGMENT_SIZE = 256;
+    private static final int COMPACT_THRESHOLD = 64;
+    private static final String SEGMENT_EXTENSION = ".log";
+    private static final String COMPACT_EXTENSION = ".tmp";
+    private static final String COMPACT_DONE = "compact.done";
+    private static final char APPEND = '+';
+    private static final char REPLACE = '=';
+
+    private final FileSystemStorage fs = FileSystemStorage.getInstance();
+    private final String root;
+    private final Map<String, Conversation> conversations = new HashMap<>();
+
+    private static class Conversation {
+        String dir;
+        int segment;
+        int records;
+        int garbage;
+
+        // the newest segment doesn't end with a newline because a write was
+        // cut short, the next write starts a new line
+        boolean torn;
+
+        // segments whose replace entries were already added to garbage
+        final Set<Integer> counted = new HashSet<>();
+
+        // segment of every entry we read or wrote in this session
+        final Map<String, Integer> segments = new HashMap<>();
+
+        // key of a superseded entry to the segment of the entry replacing it
+        final Map<String, Integer> superseded = new HashMap<>();
+
+        // superseded key to the key of the entry that replaced it
+        final Map<String, String> renamed = new HashMap<>();
+    }
+
+    /**
+     * Messages in log order, an edit keeps the position of the entry it
+     * supersedes
+     */
+    private static class History {
+        final List<ChatMessage> messages = new ArrayList<>();
+        final Map<String, Integer> positions = new HashMap<>();
+
+        void add(ChatMessage m) {
+            String key = recordKey(m);
+            Integer pos = positions.get(key);
+            if(pos != null) {
+                messages.set(pos, m);
+                return;
+            }
+            positions.put(key, messages.size());
+            messages.add(m);
+        }
+
+        void replace(String oldKey, ChatMessage m) {
+            Integer pos = positions.remove(oldKey);
+            if(pos == null) {
+                add(m);
+                return;
+            }
+            Integer existing = positions.get(recordKey(m));
+            if(existing != null) {
+                messages.set(existing, null);
+            }
+            positions.put(recordKey(m), pos);
+            messages.set(pos, m);
+        }
+
+        List<ChatMessage> toList() {
+            List<ChatMessage> response = new ArrayList<>(messages.size());
+            for(ChatMessage m : messages) {
+                if(m != null) {
+                    response.add(m);
+                }
+            }
+            return response;
+        }
+    }
+
+    public MessageStore(String root) {
+        this.root = root.endsWith("/") ? root : root + "/";
+        if(!fs.exists(this.root)) {
+            fs.mkdir(this.root);
+        }
+    }
+
+    /**
+     * The key identifying a message within the log, edits reference the
+     * entry they supersede by this key
+     *
+     * @param m the message
+     * @return a key that is unique within the conversation
+     */
+    public static String recordKey(ChatMessage m) {
+        if(m.id.get() != null) {
+            return m.id.get();
+        }
+        if(m.localId.get() != null) {
+            return m.localId.get();
+        }
+        Date time = m.time.get();
+        return m.authorId.get() + "@" + (time == null ? 0 : time.getTime());
+    }
+
+    /**
+     * Returns true if there is a log for the given conversation
+     *
+     * @param conversationId the id of the contact or group
+     * @return true if messages were stored for this conversation
+     */
+    public boolean exists(String conversationId) {
+        return fs.exists(dir(conversationId));
+    }
+
+    /**
+     * Adds a message to the end of the conversation log
+     *
+     * @param conversationId the id of the contact or group
+     * @param m the message
+     */
+    public void append(String conversationId, ChatMessage m) {
+        Conversation c = open(conversationId);
+        write(c, APPEND + m.getPropertyIndex().toJSON());
+        c.segments.put(recordKey(m), c.segment);
+    }
+
+    /**
+     * Adds all the messages to the conversation log in a single write
+     *
+     * @param conversationId the id of the contact or group
+     * @param messages the messages in order
+     */
+    public void appendAll(String conversationId, List<ChatMessage> messages) {
+        Conversation c = open(conversationId);
+        int offset = 0;
+        while(offset < messages.size()) {
+            nextSegmentIfFull(c);
+            int count = Math.min(messages.size() - offset,
+                SEGMENT_SIZE - c.records);
+            StringBuilder sb = new StringBuilder();
+            for(int iter = offset ; iter < offset + count ; iter++) {
+                ChatMessage m = messages.get(iter);
+                sb.append(APPEND);
+                sb.append(m.getPropertyIndex().toJSON());
+                sb.append('\n');
+                c.segments.put(recordKey(m), c.segment);
+            }
+            writeLines(c, sb.toString(), count);
+            offset += count;
+        }
+    }
+
+    /**
+     * Supersedes a previously stored message e.g. when the server assigns an
+     * id to a message we sent
+     *
+     * @param conversationId the id of the contact or group
+     * @param oldKey the {@link #recordKey(ChatMessage)} of the stored entry
+     * @param m the new version of the message
+     */
+    public void replace(String conversationId, String oldKey, ChatMessage m) {
+        Conversation c = open(conversationId);
+        write(c, REPLACE + oldKey + "\t" + m.getPropertyIndex().toJSON());
+        superseded(c, oldKey, m, c.segment);
+        c.garbage++;
+        if(c.garbage >= COMPACT_THRESHOLD) {
+            compact(conversationId);
+        }
+    }
+
+    /**
+     * Loads the full history of the conversation
+     *
+     * @param conversationId the id of the contact or group
+     * @return the messages in the order in which they were added
+     */
+    public List<ChatMessage> load(String conversationId) {
+        return loadPage(conversationId, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Loads up to count messages that precede the given message, only the
+     * segments covering the page are read
+     *
+     * @param conversationId the id of the contact or group
+     * @param beforeKey the {@link #recordKey(ChatMessage)} of the oldest 
+     * message we already have or null for the newest page
+     * @param count the maximum number of messages to return
+     * @return the messages in the order in which they were added
+     */
+    public List<ChatMessage> loadPage(String conversationId, String beforeKey,
+            int count) {
+        Conversation c = open(conversationId);
+        int start = c.segment;
+        if(beforeKey != null) {
+            String k = c.renamed.get(beforeKey);
+            while(k != null) {
+                beforeKey = k;
+                k = c.renamed.get(beforeKey);
+            }
+            Integer s = c.segments.get(beforeKey);
+            if(s != null) {
+                start = s;
+            }
+        }
+        boolean found = beforeKey == null;
+        List<ChatMessage> page = new ArrayList<>();
+        for(int seg = start ; seg >= 0 && page.size() < count ; seg--) {
+            History h = new History();
+            readSegment(c, seg, h);
+            List<ChatMessage> l = h.toList();
+            for(int iter = l.size() - 1 ; iter >= 0 && page.size() < count ; 
+                    iter--) {
+                ChatMessage m = l.get(iter);
+                String k = recordKey(m);
+                Integer by = c.superseded.get(k);
+                if(by != null && by > seg) {
+                    continue;
+                }
+                if(!found) {
+                    found = k.equals(beforeKey);
+                    continue;
+                }
+                page.add(m);
+            }
+        }
+        Collections.reverse(page);
+        return page;
+    }
+
+    /**
+     * Returns the newest message in the conversation without parsing the
+     * rest of the log
+     *
+     * @param conversationId the id of the contact or group
+     * @return the last message or null if the conversation is empty
+     */
+    public ChatMessage last(String conversationId) {
+        Conversation c = open(conversationId);
+        String file = c.dir + segmentName(c.segment, SEGMENT_EXTENSION);
+        if(!fs.exists(file)) {
+            return null;
+        }
+        try(InputStream is = fs.openInputStream(file)) {
+            String data = Util.readToString(is, "UTF-8");
+            int end = data.lastIndexOf('\n');
+            while(end > 0) {
+                int start = data.lastIndexOf('\n', end - 1) + 1;
+                String line = data.substring(start, end);
+                end = start - 1;
+                if(line.length() < 2) {
+                    continue;
+                }
+                JSONParser jp = new JSONParser();
+                JSONParser.setUseBoolean(true);
+                JSONParser.setUseLongs(true);
+                try {
+                    if(line.charAt(0) == APPEND) {
+                        return parse(jp, line.substring(1));
+                    }
+                    if(line.charAt(0) == REPLACE) {
+                        return parse(jp, 
+                            line.substring(line.indexOf('\t') + 1));
+                    }
+                } catch(IOException err) {
+                    // fall back to the entry before the corrupt one
+                    Log.p("Skipping corrupt entry in " + file);
+                }
+            }
+        } catch(IOException err) {
+            Log.e(err);
+        }
+        return null;
+    }
+
+    /**
+     * Rewrites the conversation without the superseded entries
+     *
+     * @param conversationId the id of the contact or group
+     */
+    public void compact(String conversationId) {
+        List<ChatMessage> messages = load(conversationId);
+        Conversation c = open(conversationId);
+        try {
+            int count = 0;
+            for(int offset = 0 ; offset < messages.size() ;
+                    offset += SEGMENT_SIZE) {
+                int end = Math.min(messages.size(), offset + SEGMENT_SIZE);
+                StringBuilder sb = new StringBuilder();
+                for(int iter = offset ; iter < end ; iter++) {
+                    sb.append(APPEND);
+                    sb.append(messages.get(iter).getPropertyIndex().toJSON());
+                    sb.append('\n');
+                }
+                try(OutputStream os = fs.openOutputStream(c.dir +
+                        segmentName(count, COMPACT_EXTENSION))) {
+                    os.write(sb.toString().getBytes("UTF-8"));
+                }
+                count++;
+            }
+            try(OutputStream os = fs.openOutputStream(c.dir + COMPACT_DONE)) {
+                os.write(("" + count).getBytes("UTF-8"));
+            }
+            finishCompaction(c, count);
+        } catch(IOException err) {
+            Log.e(err);
+        }
+    }
+
+    private String dir(String conversationId) {
+        StringBuilder sb = new StringBuilder(root);
+        for(int iter = 0 ; iter < conversationId.length() ; iter++) {
+            char ch = conversationId.charAt(iter);
+            if(Character.isLetterOrDigit(ch) || ch == '-' || ch == '_') {
+                sb.append(ch);
+            } else {
+                sb.append('_');
+            }
+        }
+        sb.append('/');
+        return sb.toString();
+    }
+
+    private static String segmentName(int segment, String extension) {
+        String s = "" + segment;
+        while(s.length() < 6) {
+            s = "0" + s;
+        }
+        return s + extension;
+    }
+
+    private Conversation open(String conversationId) {
+        Conversation c = conversations.get(conversationId);
+        if(c != null) {
+            return c;
+        }
+        c = new Conversation();
+        c.dir = dir(conversationId);
+        conversations.put(conversationId, c);
+        if(!fs.exists(c.dir)) {
+            fs.mkdir(c.dir);
+            c.counted.add(0);
+            return c;
+        }
+        int compacted = compactedSegments(c);
+        if(compacted > -1) {
+            // we crashed after the compacted segments were fully written
+            finishCompaction(c, compacted);
+        } else {
+            fs.delete(c.dir + COMPACT_DONE);
+            deleteFiles(c, COMPACT_EXTENSION);
+        }
+        c.segment = Math.max(0, lastSegment(c, SEGMENT_EXTENSION));
+        scanLastSegment(c);
+        return c;
+    }
+
+    /**
+     * The number of segments a finished compaction wrote or -1 if there is 
+     * no finished compaction, in which case the segments are untouched
+     */
+    private int compactedSegments(Conversation c) {
+        if(!fs.exists(c.dir + COMPACT_DONE)) {
+            return -1;
+        }
+        try(InputStream is = fs.openInputStream(c.dir + COMPACT_DONE)) {
+            return Integer.parseInt(Util.readToString(is, "UTF-8").trim());
+        } catch(IOException | NumberFormatException err) {
+            // torn before any segment was replaced
+            Log.e(err);
+            return -1;
+        }
+    }
+
+    /**
+     * Replaces the segments with the compacted ones, every step can run 
+     * again if we crash half way since a segment is only deleted while its 
+     * compacted version still exists
+     */
+    private void finishCompaction(Conversation c, int count) {
+        for(String f : list(c)) {
+            if(f.endsWith(SEGMENT_EXTENSION) && segmentIndex(f,
+                    SEGMENT_EXTENSION) >= count) {
+                fs.delete(c.dir + f);
+            }
+        }
+        for(int iter = 0 ; iter < count ; iter++) {
+            String tmp = c.dir + segmentName(iter, COMPACT_EXTENSION);
+            if(fs.exists(tmp)) {
+                fs.delete(c.dir + segmentName(iter, SEGMENT_EXTENSION));
+                fs.rename(tmp, segmentName(iter, SEGMENT_EXTENSION));
+            }
+        }
+        fs.delete(c.dir + COMPACT_DONE);
+        c.segment = Math.max(0, count - 1);
+        c.garbage = 0;
+        c.segments.clear();
+        c.superseded.clear();
+        c.renamed.clear();
+        c.counted.clear();
+        scanLastSegment(c);
+    }
+
+    private static void superseded(Conversation c, String oldKey, 
+            ChatMessage m, int segment) {
+        String newKey = recordKey(m);
+        c.superseded.put(oldKey, segment);
+        c.segments.put(newKey, segment);
+        if(!oldKey.equals(newKey)) {
+            c.renamed.put(oldKey, newKey);
+        }
+    }
+
+    private String[] list(Conversation c) {
+        try {
+            String[] files = fs.listFiles(c.dir);
+            if(files != null) {
+                return files;
+            }
+        } catch(IOException err) {
+            Log.e(err);
+        }
+        return new String[0];
+    }
+
+    private void deleteFiles(Conversation c, String extension) {
+        for(String f : list(c)) {
+            if(f.endsWith(extension)) {
+                fs.delete(c.dir + f);
+            }
+        }
+    }
+
+    private int lastSegment(Conversation c, String extension) {
+        int last = -1;
+        for(String f : list(c)) {
+            if(f.endsWith(extension)) {
+                last = Math.max(last, segmentIndex(f, extension));
+            }
+        }
+        return last;
+    }
+
+    private static int segmentIndex(String f, String extension) {
+        try {
+            return Integer.parseInt(
+                f.substring(0, f.length() - extension.length()));
+        } catch(NumberFormatException err) {
+            Log.p("Unexpected file in message store: " + f);
+            return -1;
+        }
+    }
+
+    /**
+     * Counts the entries of the newest segment, its replace entries and 
+     * whether a crash cut its last line short. Older segments are counted 
+     * as they're read
+     */
+    private void scanLastSegment(Conversation c) {
+        c.records = 0;
+        c.torn = false;
+        c.counted.add(c.segment);
+        String file = c.dir + segmentName(c.segment, SEGMENT_EXTENSION);
+        if(!fs.exists(file)) {
+            return;
+        }
+        try(InputStream is = fs.openInputStream(file)) {
+            byte[] data = Util.readInputStream(is);
+            boolean lineStart = true;
+            for(byte b : data) {
+                if(lineStart && b == REPLACE) {
+                    c.garbage++;
+                }
+                lineStart = b == '\n';
+                if(lineStart) {
+                    c.records++;
+                }
+            }
+            c.torn = data.length > 0 && !lineStart;
+        } catch(IOException err) {
+            Log.e(err);
+        }
+    }
+
+    private void nextSegmentIfFull(Conversation c) {
+        if(c.records >= SEGMENT_SIZE) {
+            c.segment++;
+            c.records = 0;
+            c.torn = false;
+            c.counted.add(c.segment);
+        }
+    }
+
+    private void write(Conversation c, String line) {
+        nextSegmentIfFull(c);
+        writeLines(c, line + "\n", 1);
+    }
+
+    private void writeLines(Conversation c, String lines, int count) {
+        String file = c.dir + segmentName(c.segment, SEGMENT_EXTENSION);
+        int offset = fs.exists(file) ? (int)fs.getLength(file) : 0;
+        try(OutputStream os = fs.openOutputStream(file, offset)) {
+            if(c.torn) {
+                // terminate the torn line so it's skipped as a single 
+                // corrupt entry instead of swallowing this one
+                os.write('\n');
+                c.torn = false;
+                c.records++;
+            }
+            os.write(lines.getBytes("UTF-8"));
+            c.records += count;
+        } catch(IOException err) {
+            Log.e(err);
+        }
+    }
+
+    private void readSegment(Conversation c, int segment, History h) {
+        String file = c.dir + segmentName(segment, SEGMENT_EXTENSION);
+        if(!fs.exists(file)) {
+            return;
+        }
+        String data;
+        try(InputStream is = fs.openInputStream(file)) {
+            data = Util.readToString(is, "UTF-8");
+        } catch(IOException err) {
+            Log.e(err);
+            return;
+        }
+        boolean count = c.counted.add(segment);
+        JSONParser jp = new JSONParser();
+        JSONParser.setUseBoolean(true);
+        JSONParser.setUseLongs(true);
+        for(String line : StringUtil.tokenize(data, '\n')) {
+            if(line.length() < 2) {
+                continue;
+            }
+            try {
+                switch(line.charAt(0)) {
+                    case APPEND: {
+                        ChatMessage m = parse(jp, line.substring(1));
+                        h.add(m);
+                        c.segments.put(recordKey(m), segment);
+                        break;
+                    }
+                    case REPLACE: {
+                        int tab = line.indexOf('\t');
+                        if(tab < 0) {
+                            throw new IOException("Missing key");
+                        }
+                        String oldKey = line.substring(1, tab);
+                        ChatMessage m = parse(jp, line.substring(tab + 1));
+                        h.replace(oldKey, m);
+                        superseded(c, oldKey, m, segment);
+                        if(count) {
+                            c.garbage++;
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown entry type");
+                }
+            } catch(IOException err) {
+                // partially written line from a crash, the entries around 
+                // it are still valid
+                Log.p("Skipping corrupt entry in " + file);
+            }
+        }
+    }
+
+    static ChatMessage parse(JSONParser jp, String json)
+            throws IOException {
+        // the parser is lenient, a line cut short would still produce a 
+        // partial message
+        if(!json.endsWith("}")) {
+            throw new IOException("Truncated entry");
+        }
+        Map m = jp.parseJSON(new StringReader(json));
+        ChatMessage c = new ChatMessage();
+        c.getPropertyIndex().populateFromMap(m, ChatMessage.class);
+        return c;
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Codename One through http://www.codenameone.com/ if you
+ * need additional information or have any questions.
+ */
+
+package com.codename1.whatsapp.model;
+
+import com.codename1.io.FileSystemStorage;
+import com.codename1.io.JSONParser;
+import com.codename1.io.Log;
+import com.codename1.io.Util;
+import com.codename1.util.EasyThread;
+import com.codename1.util.OnComplete;
+import com.codename1.util.StringUtil;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Durable queue of outgoing messages. Every state change is a line appended
+ * to a journal so queuing a message costs a single small write and nothing
+ * is lost if the app dies while the queue is draining. Messages are sent in
+ * order with a bounded number in flight, a message that isn't acknowledged
+ * in time is sent again with an exponentially growing timeout. Journal 
+ * writes and sends happen on a single outbox thread, so the caller never 
+ * waits for the file system and messages reach the connection in queue 
+ * order no matter which thread changed the queue.
+ */
+public class Outbox {
+    private static final int WINDOW = 20;
+    private static final int RETRY_TIMEOUT = 5000;
+    private static final int MAX_RETRY_TIMEOUT = 5 * 60000;
+    private static final int COMPACT_THRESHOLD = 256;
+    private static final char PENDING = 'P';
+    private static final char SENT = 'S';
+    private static final char ACKED = 'A';
+
+    private final FileSystemStorage fs = FileSystemStorage.getInstance();
+    private final String file;
+    private final Timer timer;
+    private final OnComplete<ChatMessage> sender;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final EasyThread thread;
+    private int journalLines;
+    private int inFlight;
+    private boolean connected;
+    
+    // journal lines waiting for the outbox thread
+    private List<String> journalQueue = new ArrayList<>();
+    
+    // content that replaces the journal before the queued lines are 
+    // appended, an empty string deletes it
+    private String journalRewrite;
+    private boolean workScheduled;
+    
+    // the journal ends with a partial line, accessed by the outbox thread
+    private boolean torn;
+
+    private static class Entry {
+        ChatMessage message;
+        char state = PENDING;
+        int attempts;
+        TimerTask timeout;
+    }
+
+    /**
+     * @param file the path of the journal in the file system
+     * @param timer the timer used for retry timeouts
+     * @param sender writes a message to the connection, invoked on the 
+     *      outbox thread one message at a time
+     */
+    public Outbox(String file, Timer timer, OnComplete<ChatMessage> sender) {
+        this.file = file;
+        this.timer = timer;
+        this.sender = sender;
+        load();
+        thread = EasyThread.start("Outbox");
+    }
+
+    /**
+     * Adds the message to the end of the queue and sends it if the
+     * connection is available
+     *
+     * @param m a message with a local id
+     */
+    public synchronized void enqueue(ChatMessage m) {
+        Entry e = new Entry();
+        e.message = m;
+        entries.put(m.localId.get(), e);
+        journal(PENDING + m.getPropertyIndex().toJSON());
+    }
+
+    /**
+     * Marks the message as delivered and sends the next queued message
+     *
+     * @param localId the local id echoed by the server
+     * @return the acknowledged message or null if it isn't in the outbox
+     */
+    public synchronized ChatMessage acknowledge(String localId) {
+        Entry e = entries.remove(localId);
+        if(e == null) {
+            return null;
+        }
+        if(e.state == SENT) {
+            inFlight--;
+        }
+        if(e.timeout != null) {
+            e.timeout.cancel();
+        }
+        if(entries.isEmpty()) {
+            rewriteJournal("");
+        } else {
+            journal(ACKED + localId);
+            if(journalLines > COMPACT_THRESHOLD + entries.size() * 2) {
+                compact();
+            }
+        }
+        return e.message;
+    }
+
+    /**
+     * Starts sending the queued messages, invoked when the connection opens
+     */
+    public synchronized void connected() {
+        connected = true;
+        schedule();
+    }
+
+    /**
+     * Messages in flight when the connection is lost are sent again once we
+     * reconnect
+     */
+    public synchronized void disconnected() {
+        connected = false;
+        inFlight = 0;
+        for(Entry e : entries.values()) {
+            if(e.timeout != null) {
+                e.timeout.cancel();
+                e.timeout = null;
+            }
+            e.state = PENDING;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Sends pending messages in queue order while the window allows, the 
+     * sending happens on the outbox thread
+     */
+    public synchronized void drain() {
+        schedule();
+    }
+
+    private void schedule() {
+        if(!workScheduled) {
+            workScheduled = true;
+            thread.run(() -> work());
+        }
+    }
+
+    /**
+     * Writes the queued journal changes and sends what the window allows, 
+     * this only runs on the outbox thread so sends never interleave
+     */
+    private void work() {
+        List<ChatMessage> toSend = new ArrayList<>();
+        String rewrite;
+        List<String> lines;
+        synchronized(this) {
+            if(connected) {
+                for(Entry e : entries.values()) {
+                    if(inFlight >= WINDOW) {
+                        break;
+                    }
+                    if(e.state == PENDING) {
+                        e.state = SENT;
+                        e.attempts++;
+                        inFlight++;
+                        scheduleTimeout(e);
+                        journal(SENT + e.message.localId.get());
+                        toSend.add(e.message);
+                    }
+                }
+            }
+            rewrite = journalRewrite;
+            journalRewrite = null;
+            lines = journalQueue;
+            journalQueue = new ArrayList<>();
+            
+            // changes from here on need another run
+            workScheduled = false;
+        }
+        writeJournal(rewrite, lines);
+        for(ChatMessage m : toSend) {
+            try {
+                sender.completed(m);
+            } catch(RuntimeException err) {
+                // a message that can't be encoded mustn't hold back the 
+                // ones queued after it
+                Log.e(err);
+            }
+        }
+    }
+
+    private void scheduleTimeout(Entry e) {
+        long delay = RETRY_TIMEOUT;
+        for(int iter = 1 ; iter < e.attempts && delay < MAX_RETRY_TIMEOUT ;
+                iter++) {
+            delay *= 2;
+        }
+        e.timeout = new TimerTask() {
+            @Override
+            public void run() {
+                retry(e);
+            }
+        };
+        timer.schedule(e.timeout, Math.min(delay, MAX_RETRY_TIMEOUT));
+    }
+
+    private synchronized void retry(Entry e) {
+        if(e.state != SENT || e.timeout == null) {
+            return;
+        }
+        e.timeout = null;
+        e.state = PENDING;
+        inFlight--;
+        schedule();
+    }
+
+    /**
+     * Queues a journal line for the outbox thread, invoked with the lock 
+     * held so lines are written in the order of the changes
+     */
+    private void journal(String line) {
+        journalQueue.add(line);
+        journalLines++;
+        schedule();
+    }
+
+    /**
+     * Replaces the journal, the lines queued so far are already part of the 
+     * new content
+     */
+    private void rewriteJournal(String content) {
+        journalRewrite = content;
+        journalQueue.clear();
+        journalLines = 0;
+        schedule();
+    }
+
+    private void compact() {
+        StringBuilder sb = new StringBuilder();
+        for(Entry e : entries.values()) {
+            sb.append(PENDING);
+            sb.append(e.message.getPropertyIndex().toJSON());
+            sb.append('\n');
+        }
+        rewriteJournal(sb.toString());
+        journalLines = entries.size();
+    }
+
+    private void writeJournal(String rewrite, List<String> lines) {
+        StringBuilder sb = new StringBuilder();
+        if(rewrite != null) {
+            if(rewrite.length() > 0 && !replaceJournal(rewrite)) {
+                // the old journal is still there, appending the queue to it 
+                // at worst sends an acknowledged message again
+                sb.append(rewrite);
+            } else {
+                fs.delete(file);
+                torn = false;
+                if(rewrite.length() > 0) {
+                    fs.rename(file + ".tmp", 
+                        file.substring(file.lastIndexOf('/') + 1));
+                }
+            }
+        }
+        for(String l : lines) {
+            sb.append(l);
+            sb.append('\n');
+        }
+        if(sb.length() == 0) {
+            return;
+        }
+        if(torn) {
+            // terminate the partial line so it's skipped on its own instead 
+            // of corrupting the next record
+            sb.insert(0, '\n');
+        }
+        try(OutputStream os = fs.openOutputStream(file,
+                fs.exists(file) ? (int)fs.getLength(file) : 0)) {
+            os.write(sb.toString().getBytes("UTF-8"));
+            torn = false;
+        } catch(IOException err) {
+            Log.e(err);
+        }
+    }
+
+    private boolean replaceJournal(String content) {
+        try(OutputStream os = fs.openOutputStream(file + ".tmp")) {
+            os.write(content.getBytes("UTF-8"));
+            return true;
+        } catch(IOException err) {
+            Log.e(err);
+            return false;
+        }
+    }
+
+    private void load() {
+        String tmp = file + ".tmp";
+        if(!fs.exists(file) && fs.exists(tmp)) {
+            // we died between deleting the journal and renaming its
+            // compacted version
+            fs.rename(tmp, file.substring(file.lastIndexOf('/') + 1));
+        }
+        if(!fs.exists(file)) {
+            return;
+        }
+        try(InputStream is = fs.openInputStream(file)) {
+            String data = Util.readToString(is, "UTF-8");
+            torn = data.length() > 0 && !data.endsWith("\n");
+            JSONParser jp = new JSONParser();
+            JSONParser.setUseBoolean(true);
+            JSONParser.setUseLongs(true);
+            for(String line : StringUtil.tokenize(data, '\n')) {
+                if(line.length() < 2) {
+                    continue;
+                }
+                journalLines++;
+                switch(line.charAt(0)) {
+                    case PENDING: {
+                        ChatMessage m;
+                        try {
+                            m = MessageStore.parse(jp, line.substring(1));
+                        } catch(IOException err) {
+                            // a line torn by a crash, the rest of the 
+                            // journal is still valid
+                            Log.p("Skipping corrupt entry in " + file);
+                            break;
+                        }
+                        Entry e = new Entry();
+                        e.message = m;
+                        entries.put(m.localId.get(), e);
+                        break;
+                    }
+                    case ACKED:
+                        entries.remove(line.substring(1));
+                        break;
+                    case SENT:
+                        // unacknowledged messages are sent again
+                        break;
+                    default:
+                        Log.p("Skipping corrupt entry in " + file);
+                }
+            }
+        } catch(IOException err) {
+            Log.e(err);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Codename One through http://www.codenameone.com/ if you
+ * need additional information or have any questions.
+ */
+
+
+package com.codename1.whatsapp.model;
+
+import com.codename1.io.NetworkManager;
+import com.codename1.util.EasyThread;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Decides when to open the WebSocket again after it dropped. Retries back 
+ * off exponentially up to a cap and every delay is drawn at random below 
+ * the backoff so clients that lost a restarting server together don't 
+ * come back together. While we wait the access point is polled and a new 
+ * network cuts the wait short. Connection attempts run one at a time on a 
+ * single thread that's kept for all the connections of the app.
+ */
+public class Reconnector {
+    private static final long BASE_DELAY = 1000;
+    private static final long MAX_DELAY = 120000;
+    private static final long NETWORK_POLL = 5000;
+    
+    private final Timer timer;
+    private final EasyThread connectThread;
+    private final Runnable connect;
+    private final Random random = new Random();
+    private TimerTask task;
+    private boolean running;
+    private boolean connected;
+    
+    // an attempt was handed to the connect thread and didn't finish yet
+    private boolean pending;
+    private int failures;
+    private String accessPoint;
+    
+    private int attempts;
+    private int connects;
+    private int drops;
+    private long lastDelay;
+    private long connectedSince;
+    private long disconnectedSince;
+    private long downtime;
+
+    /**
+     * @param timer the timer on which retries are scheduled
+     * @param connect opens a new connection, invoked on the connect thread
+     */
+    public Reconnector(Timer timer, Runnable connect) {
+        this.timer = timer;
+        this.connect = connect;
+        connectThread = EasyThread.start("Connect Thread");
+    }
+
+    /**
+     * Connects right away and keeps reconnecting until {@link #stop()}, when 
+     * the app returns to the foreground this cuts a pending backoff short
+     */
+    public synchronized void start() {
+        running = true;
+        failures = 0;
+        if(!connected && !pending) {
+            retry(0);
+        }
+    }
+
+    /**
+     * Stops reconnecting, used when we close the connection ourselves
+     */
+    public synchronized void stop() {
+        running = false;
+        cancel();
+    }
+
+    public synchronized void connected() {
+        connected = true;
+        pending = false;
+        failures = 0;
+        connects++;
+        long now = System.currentTimeMillis();
+        connectedSince = now;
+        if(disconnectedSince > 0) {
+            downtime += now - disconnectedSince;
+            disconnectedSince = 0;
+        }
+    }
+
+    /**
+     * Invoked when the connection closed or failed to open, this might be 
+     * invoked more than once for the same failure
+     */
+    public synchronized void disconnected() {
+        pending = false;
+        if(connected) {
+            connected = false;
+            drops++;
+            disconnectedSince = System.currentTimeMillis();
+        } else if(disconnectedSince == 0) {
+            disconnectedSince = System.currentTimeMillis();
+        }
+        if(!running || task != null) {
+            return;
+        }
+        // full jitter, a random delay up to the exponential backoff
+        long backoff = Math.min(MAX_DELAY, BASE_DELAY << Math.min(failures, 16));
+        failures++;
+        retry((long)(random.nextDouble() * backoff));
+    }
+
+    private void cancel() {
+        if(task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    private void retry(long delay) {
+        cancel();
+        lastDelay = delay;
+        accessPoint = currentAccessPoint();
+        schedule(delay);
+    }
+
+    private void schedule(long delay) {
+        task = new TimerTask() {
+            @Override
+            public void run() {
+                tick(this, delay);
+            }
+        };
+        timer.schedule(task, Math.min(delay, NETWORK_POLL));
+    }
+
+    private synchronized void tick(TimerTask current, long remaining) {
+        if(task != current) {
+            return;
+        }
+        if(remaining > NETWORK_POLL) {
+            String ap = currentAccessPoint();
+            if(ap == null || ap.equals(accessPoint)) {
+                schedule(remaining - NETWORK_POLL);
+                return;
+            }
+            // a new network, the old one is probably why we dropped
+            failures = 0;
+        }
+        task = null;
+        pending = true;
+        attempts++;
+        connectThread.run(connect);
+    }
+
+    private static String currentAccessPoint() {
+        NetworkManager n = NetworkManager.getInstance();
+        if(n.isAPSupported()) {
+            return n.getCurrentAccessPoint();
+        }
+        return null;
+    }
+
+    /**
+     * @return true while the WebSocket is open
+     */
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return the number of connection attempts since the app started
+     */
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return the number of attempts that succeeded
+     */
+    public synchronized int getConnects() {
+        return connects;
+    }
+
+    /**
+     * @return the number of times an open connection dropped
+     */
+    public synchronized int getDrops() {
+        return drops;
+    }
+
+    /**
+     * @return the failed attempts since the last successful connection
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the delay chosen for the latest retry in milliseconds
+     */
+    public synchronized long getLastDelay() {
+        return lastDelay;
+    }
+
+    /**
+     * @return the time the current connection opened or 0 if we're offline
+     */
+    public synchronized long getConnectedSince() {
+        return connected ? connectedSince : 0;
+    }
+
+    /**
+     * @return the milliseconds spent disconnected since the app started, 
+     *      including the current outage
+     */
+    public synchronized long getDowntime() {
+        if(disconnectedSince > 0) {
+            return downtime + System.currentTimeMillis() - disconnectedSince;
+        }
+        return downtime;
+    }
+}
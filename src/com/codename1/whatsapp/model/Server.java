@@ -24,10 +24,9 @@
 package com.codename1.whatsapp.model;
 
 import com.codename1.contacts.Contact;
-import com.codename1.io.JSONParser;
+import com.codename1.io.FileSystemStorage;
 import com.codename1.io.Log;
 import com.codename1.io.Preferences;
-import com.codename1.io.Util;
 import com.codename1.io.rest.RequestBuilder;
 import com.codename1.io.rest.Response;
 import com.codename1.io.rest.Rest;
@@ -38,15 +37,12 @@ import com.codename1.ui.Display;
 import com.codename1.ui.EncodedImage;
 import com.codename1.util.EasyThread;
 import com.codename1.util.OnComplete;
-import com.codename1.util.regex.StringReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Timer;
 
 public class Server {
     private static final String SERVER_URL = "http://localhost:8080/";
@@ -54,44 +50,142 @@ public class Server {
     
     private static final String USER_FILE_NAME = "user.json";
     private static final String MESSAGE_QUEUE_FILE_NAME = "message_queue.json";
+    private static final String OUTBOX_FILE_NAME = "outbox.log";
+    private static final String CONTACTS_FILE_NAME = "contacts.json";
+    private static final String USER_DIRECTORY_FILE_NAME = "users.log";
+    private static final String SYNC_CURSOR = "SyncCursor";
+    private static final int SYNC_PAGE_SIZE = 200;
 
     private static ChatContact currentUser;
     
     private static WebSocket connection;
     private static boolean connected;
-    private static List<ChatMessage> messageQueue;
+    
+    // true once the server accepted the binary wire format for this 
+    // connection, until then frames are sent as JSON
+    private static volatile boolean binary;
+    private static int localIdCounter;
+    private static MessageStore messageStore;
+    private static Outbox outbox;
+    private static Timer timer;
+    private static AckBatcher acks;
+    private static KeepAlive keepAlive;
+    private static Reconnector reconnector;
+    private static TypingIndicator typing;
+    private static UserDirectory userDirectory;
+    private static FrameDecoder decoder;
+    private static ServerMessages listener;
+    
+    private static final Object uiLock = new Object();
+    private static List<ChatMessage> uiReceived = new ArrayList<>();
+    private static List<Runnable> uiEvents = new ArrayList<>();
+    private static boolean uiScheduled;
     
     public static ChatContact user() {
         return currentUser;
     }
 
     public static void init() {
+        contactsThread = EasyThread.start("Contacts Thread");
+        timer = new Timer();
+        acks = new AckBatcher(timer, ids -> sendAcks(ids));
+        reconnector = new Reconnector(timer, () -> openConnection());
+        typing = new TypingIndicator(timer, 
+            (contactId, on) -> sendTyping(contactId, on), 
+            (contactId, on) -> {
+                List<Runnable> events = new ArrayList<>();
+                if(on) {
+                    events.add(() -> listener.userTyping(contactId));
+                } else {
+                    events.add(() -> listener.userStoppedTyping(contactId));
+                }
+                postToUI(new ArrayList<>(), events);
+            });
+        keepAlive = new KeepAlive(timer, () -> {
+            if(binary) {
+                sendFrame(WireCodec.encodePing());
+            } else {
+                sendFrame("{\"t\":\"ping\"}");
+            }
+        });
+        decoder = new FrameDecoder("Message Decoder", 
+            batch -> handleFrames(batch), 
+            frame -> handleControlFrame(frame));
+        String home = FileSystemStorage.getInstance().getAppHomePath();
+        messageStore = new MessageStore(home + "messages");
+        userDirectory = new UserDirectory(home + USER_DIRECTORY_FILE_NAME, 
+            contactsThread, (hashes, result) -> discover(hashes, result), 
+            (ids, result) -> fetchUsersById(ids, result));
+        outbox = new Outbox(home + OUTBOX_FILE_NAME, timer, m -> {
+            WebSocket w = connection;
+            if(w != null) {
+                keepAlive.traffic();
+                if(binary) {
+                    w.send(WireCodec.encodeMessage(m));
+                } else {
+                    w.send(m.getPropertyIndex().toJSON());
+                }
+            }
+        });
         if(existsInStorage(USER_FILE_NAME)) {
             currentUser = new ChatContact();
             currentUser.getPropertyIndex().loadJSON(USER_FILE_NAME);
             
             if(existsInStorage(MESSAGE_QUEUE_FILE_NAME)) {
-                messageQueue = new ChatMessage().getPropertyIndex().
+                // queue written by older versions
+                List<ChatMessage> l = new ChatMessage().getPropertyIndex().
                     loadJSONList(MESSAGE_QUEUE_FILE_NAME);
+                for(ChatMessage m : l) {
+                    if(m.localId.get() == null) {
+                        m.localId.set(newLocalId());
+                    }
+                    outbox.enqueue(m);
+                }
+                deleteStorageFile(MESSAGE_QUEUE_FILE_NAME);
             }
-            if(existsInStorage("contacts.json")) {
-                contactCache = new ChatContact().getPropertyIndex().
-                    loadJSONList("contacts.json");
+            if(existsInStorage(CONTACTS_FILE_NAME)) {
+                contactCache = new ContactRegistry(loadContacts());
             } else {
-                contactCache = new ArrayList<>();
+                contactCache = new ContactRegistry();
             }
         } else {
-            contactCache = new ArrayList<>();            
+            contactCache = new ContactRegistry();
         } 
     }
     
     public static void flushMessageQueue() {
-        if(connected && messageQueue != null && messageQueue.size() > 0) {
-            for(ChatMessage m : messageQueue) {
-                connection.send(m.getPropertyIndex().toJSON());
-            }
-            messageQueue.clear();
-        }        
+        outbox.drain();
+    }
+    
+    private static String newLocalId() {
+        localIdCounter++;
+        return currentUser.id.get() + "-" + System.currentTimeMillis() + 
+            "-" + localIdCounter;
+    }
+    
+    /**
+     * Handles the server echo of a message we sent, the echo carries our 
+     * local id and the id the server assigned
+     * 
+     * @return true if the frame was an echo of a pending message
+     */
+    private static boolean messageSent(ChatMessage echo) {
+        if(echo.localId.get() == null) {
+            return false;
+        }
+        ChatMessage m = outbox.acknowledge(echo.localId.get());
+        if(m == null) {
+            return false;
+        }
+        String oldKey = MessageStore.recordKey(m);
+        m.id.set(echo.id.get());
+        if(echo.time.get() != null) {
+            m.time.set(echo.time.get());
+        }
+        String conversation = m.sentTo.get();
+        contactsThread.run(() -> 
+            messageStore.replace(conversation, oldKey, m));
+        return true;
     }
     
     private static RequestBuilder post(String u) {
@@ -158,259 +252,860 @@ public class Server {
         return "OK".equals(result.getResponseData());
     }
     
+    /**
+     * Sends the message over the WebSocket without waiting for a response, 
+     * the server echoes the message with its id which is matched to the 
+     * message by its local id. Messages go through the {@link Outbox} so 
+     * they're kept until the echo arrives and sent in order once we're 
+     * online
+     * 
+     * @param m the message
+     * @param cont the recipient
+     */
     public static void sendMessage(ChatMessage m, ChatContact cont) {
         cont.lastActivityTime.set(new Date());
-        cont.chats.add(m);
-        saveContacts();
-        if(connected) {
-            post("user/sendMessage").
-                body(m).
-                fetchAsProperties(e -> {
-                    cont.chats.remove(m);
-                    cont.chats.add((ChatMessage)e.getResponseData());
-                    saveContacts();
-                }, ChatMessage.class);
-            //connection.send(m.getPropertyIndex().toJSON());
-        } else {
-            if(messageQueue == null) {
-                messageQueue = new ArrayList<>();
-            }
-            messageQueue.add(m);
-            PropertyIndex.storeJSONList(MESSAGE_QUEUE_FILE_NAME, 
-                    messageQueue);
+        if(m.localId.get() == null) {
+            m.localId.set(newLocalId());
         }
+        appendMessage(cont, m);
+        outbox.enqueue(m);
     }
     
     public static void bindMessageListener(final ServerMessages 
                 callback) {
+        listener = callback;
+        reconnector.start();
+    }
+    
+    /**
+     * Opens a new connection, every reconnect gets a new WebSocket so 
+     * events that arrive late from an older one are ignored. Invoked on the 
+     * connect thread of the {@link Reconnector}
+     */
+    private static void openConnection() {
+        WebSocket old = connection;
+        if(old != null) {
+            old.close();
+        }
         connection = new WebSocket(WEBSOCKER_URL) {
+            private boolean opened;
+            
             @Override
             protected void onOpen() {
+                if(connection != this) {
+                    close();
+                    return;
+                }
+                opened = true;
+                reconnector.connected();
                 connected = true;
+                binary = false;
                 long lastMessageTime = 
                     Preferences.get("LastReceivedMessage", (long)0);
+                // with sync the server doesn't push the backlog, we pull it 
+                // a page at a time. The server answers bin with an init 
+                // frame if it supports the binary wire format
                 send("{\"t\":\"init\",\"tok\":\"" + 
                     currentUser.token.get() + 
                     "\",\"time\":" + 
-                    lastMessageTime + "}");
-                callSerially(() -> callback.connected());
-                final WebSocket w = this;
-                new Thread() {
-                    public void run() {
-                        Util.sleep(80000);
-                        while(connection == w) {
-                            // keep-alive message every 80 seconds to avoid 
-                            // cloudflare killing of the connection
-                            // https://community.cloudflare.com/t/cloudflare-websocket-timeout/5865/3
-                            send("{\"t\":\"ping\"}");
-                            Util.sleep(80000);
-                        } 
-                    }
-                }.start();
+                    lastMessageTime + ",\"sync\":true,\"bin\":" + 
+                    WireCodec.VERSION + "}");
+                requestSyncPage();
+                outbox.connected();
+                callSerially(() -> listener.connected());
+                keepAlive.start();
             }
             
             @Override
             protected void onClose(int statusCode, String reason) {
-                connected = false;
-                callSerially(() -> callback.disconnected());
+                if(connection != this) {
+                    // closed by us or replaced by a newer connection, 
+                    // that was already handled
+                    return;
+                }
+                reconnector.disconnected();
+                if(opened) {
+                    opened = false;
+                    connectionLost();
+                }
             }
             
             @Override
             protected void onMessage(String message) {
-                try {
-                    StringReader r = new StringReader(message);
-                    JSONParser jp = new JSONParser();
-                    JSONParser.setUseBoolean(true);
-                    JSONParser.setUseLongs(true);
-                    Map m  = jp.parseJSON(r);
-                    ChatMessage c = new ChatMessage();
-                    c.getPropertyIndex().
-                        populateFromMap(m, ChatMessage.class);
-                    callSerially(() -> {
-                        if(c.typing.get() != null && 
-                                c.typing.getBoolean()) {
-                            callback.userTyping(c.authorId.get());
-                            return;
-                        }
-                        if(c.viewedBy.size() > 0) {
-                            callback.messageViewed(message, 
-                                c.viewedBy.asList());
-                            return;
-                        }
-                        Preferences.set("LastReceivedMessage", 
-                            c.time.get().getTime());
-                        updateMessage(c);
-                        
-                        ackMessage(c.id.get());
-                        callback.messageReceived(c);
-                    });
-                } catch(IOException err) {
-                    Log.e(err);
-                    throw new RuntimeException(err.toString());
-                }                
+                keepAlive.traffic();
+                decoder.add(message);
             }
             
             @Override
             protected void onMessage(byte[] message) {
+                keepAlive.traffic();
+                decoder.addBinary(message);
             }
             
             @Override
             protected void onError(Exception ex) {
                 Log.e(ex);
+                if(!opened && connection == this) {
+                    // the connection couldn't be opened, we might not get 
+                    // an onClose for it
+                    reconnector.disconnected();
+                }
             }
         };
-        connection.autoReconnect(5000);
         connection.connect();
     }
     
-    private static void updateMessage(ChatMessage m) {
-        for(ChatContact c : contactCache) {
-            if(c.id.get() != null && 
-                    c.id.get().equals(m.authorId.get())) {
-                c.lastActivityTime.set(new Date());
-                c.chats.add(m);
-                saveContacts();        
+    private static void connectionLost() {
+        connected = false;
+        binary = false;
+        keepAlive.disconnected();
+        typing.disconnected();
+        // messages that weren't echoed are sent again once we 
+        // reconnect, the server drops duplicates by local id
+        outbox.disconnected();
+        callSerially(() -> listener.disconnected());
+    }
+    
+    /**
+     * Invoked by the chat input whenever it changes, the indicator decides 
+     * if the contact should be told
+     * 
+     * @param to the contact we're writing to
+     * @param typing false once the input is empty
+     */
+    public static void typingTo(ChatContact to, boolean typing) {
+        Server.typing.typed(to.id.get(), typing);
+    }
+    
+    public static boolean isTyping(String contactId) {
+        return typing.isTyping(contactId);
+    }
+    
+    private static void sendTyping(String contactId, boolean on) {
+        if(!connected) {
+            // presence isn't worth queueing
+            return;
+        }
+        ChatMessage m = new ChatMessage().
+            authorId.set(currentUser.id.get()).
+            sentTo.set(contactId).
+            typing.set(on);
+        if(binary) {
+            sendFrame(WireCodec.encodeMessage(m));
+        } else {
+            sendFrame(m.getPropertyIndex().toJSON());
+        }
+    }
+    
+    /**
+     * @return the reconnect engine, its counters describe the state of the 
+     *      connection
+     */
+    public static Reconnector reconnector() {
+        return reconnector;
+    }
+    
+    /**
+     * Applies a batch of decoded frames to the model, this runs on the 
+     * decoder thread so only the resulting UI notifications reach the EDT
+     */
+    private static void handleFrames(List<ChatMessage> batch) {
+        List<ChatMessage> received = new ArrayList<>();
+        List<Runnable> events = new ArrayList<>();
+        long lastTime = 0;
+        for(ChatMessage c : batch) {
+            if(messageSent(c)) {
+                continue;
+            }
+            if(c.typing.get() != null) {
+                // repeated notifications are absorbed by the indicator, 
+                // only a change of state reaches the UI
+                typing.received(c.authorId.get(), c.typing.getBoolean());
+                continue;
+            }
+            if(c.viewedBy.size() > 0) {
+                String id = c.id.get();
+                List<String> viewedBy = c.viewedBy.asList();
+                events.add(() -> listener.messageViewed(id, viewedBy));
+                continue;
+            }
+            if(c.time.get() != null) {
+                lastTime = Math.max(lastTime, c.time.get().getTime());
+            }
+            typing.messageReceived(c.authorId.get());
+            updateMessage(c);
+            ackMessage(c.id.get());
+            received.add(c);
+        }
+        if(lastTime > 0) {
+            // one preferences write per batch instead of one per message
+            Preferences.set("LastReceivedMessage", lastTime);
+        }
+        postToUI(received, events);
+    }
+    
+    private static void postToUI(List<ChatMessage> received, 
+            List<Runnable> events) {
+        if(received.isEmpty() && events.isEmpty()) {
+            return;
+        }
+        synchronized(uiLock) {
+            uiReceived.addAll(received);
+            uiEvents.addAll(events);
+            if(uiScheduled) {
                 return;
             }
+            uiScheduled = true;
+        }
+        callSerially(() -> deliverToUI());
+    }
+    
+    private static void handleControlFrame(Map frame) {
+        Object t = frame.get("t");
+        if("page".equals(t)) {
+            applySyncPage(frame);
+            return;
+        }
+        if("init".equals(t)) {
+            Object version = frame.get("bin");
+            binary = version instanceof Number && 
+                ((Number)version).intValue() == WireCodec.VERSION;
         }
-        findRegisteredUserById(m.authorId.get(), cc -> {
-            contactCache.add(cc);
-            cc.chats.add(m);
+    }
+    
+    private static void sendFrame(String frame) {
+        WebSocket w = connection;
+        if(connected && w != null) {
+            keepAlive.traffic();
+            w.send(frame);
+        }
+    }
+    
+    private static void sendFrame(byte[] frame) {
+        WebSocket w = connection;
+        if(connected && w != null) {
+            keepAlive.traffic();
+            w.send(frame);
+        }
+    }
+    
+    /**
+     * Asks for the next page of messages we missed while offline, pages are 
+     * only requested once the previous page was stored so a long offline 
+     * period is caught up at the pace we can handle
+     */
+    private static void requestSyncPage() {
+        String cursor = Preferences.get(SYNC_CURSOR, (String)null);
+        if(binary) {
+            sendFrame(WireCodec.encodeSync(cursor, SYNC_PAGE_SIZE));
+            return;
+        }
+        sendFrame("{\"t\":\"sync\",\"cursor\":" + 
+            (cursor == null ? "null" : "\"" + cursor + "\"") + 
+            ",\"max\":" + SYNC_PAGE_SIZE + "}");
+    }
+    
+    /**
+     * Stores a page of missed messages as one unit: the messages of every 
+     * conversation are appended together, the contacts are written once and 
+     * the cursor is saved and acknowledged only after that so an 
+     * interrupted sync resumes from the last stored page
+     */
+    private static void applySyncPage(Map frame) {
+        String cursor = (String)frame.get("cursor");
+        boolean more = Boolean.TRUE.equals(frame.get("more"));
+        List<ChatMessage> received = new ArrayList<>();
+        Map<String, List<ChatMessage>> conversations = new HashMap<>();
+        Map<String, Long> unknownAuthors = new HashMap<>();
+        long lastTime = 0;
+        Object l = frame.get("messages");
+        if(l instanceof List) {
+            for(Object o : (List)l) {
+                ChatMessage c;
+                if(o instanceof ChatMessage) {
+                    // already decoded from a binary page
+                    c = (ChatMessage)o;
+                } else {
+                    c = new ChatMessage();
+                    c.getPropertyIndex().populateFromMap((Map)o, 
+                        ChatMessage.class);
+                }
+                if(messageSent(c)) {
+                    // the echo of a message we sent before reconnecting
+                    continue;
+                }
+                if(c.authorId.get() == null) {
+                    Log.p("Skipping a synced message without an author");
+                    continue;
+                }
+                if(c.time.get() == null) {
+                    c.time.set(new Date());
+                }
+                long t = c.time.get().getTime();
+                lastTime = Math.max(lastTime, t);
+                received.add(c);
+                
+                // conversations are keyed by the id of the author, so the 
+                // message can be stored before we know who that is
+                String authorId = c.authorId.get();
+                ChatContact author = contactCache.findById(authorId);
+                if(author == null) {
+                    Long known = unknownAuthors.get(authorId);
+                    if(known == null || known < t) {
+                        unknownAuthors.put(authorId, t);
+                    }
+                } else {
+                    Date d = author.lastActivityTime.get();
+                    if(d == null || d.getTime() < t) {
+                        author.lastActivityTime.set(c.time.get());
+                    }
+                }
+                List<ChatMessage> conv = conversations.get(authorId);
+                if(conv == null) {
+                    conv = new ArrayList<>();
+                    conversations.put(authorId, conv);
+                }
+                conv.add(c);
+            }
+        }
+        long time = lastTime;
+        contactsThread.run(() -> {
+            for(Map.Entry<String, List<ChatMessage>> e : 
+                    conversations.entrySet()) {
+                messageStore.appendAll(e.getKey(), e.getValue());
+            }
+            if(!conversations.isEmpty()) {
+                PropertyIndex.storeJSONList(CONTACTS_FILE_NAME, 
+                    contactCache.snapshot());
+            }
+            if(time > 0) {
+                Preferences.set("LastReceivedMessage", time);
+            }
+            if(cursor != null) {
+                Preferences.set(SYNC_CURSOR, cursor);
+                if(binary) {
+                    sendFrame(WireCodec.encodeSyncAck(cursor));
+                } else {
+                    sendFrame("{\"t\":\"syncAck\",\"cursor\":\"" + cursor + 
+                        "\"}");
+                }
+            }
+            if(more) {
+                requestSyncPage();
+            }
+            
+            // the page is stored, looking up new authors can take a while
+            for(Map.Entry<String, Long> e : unknownAuthors.entrySet()) {
+                long last = e.getValue();
+                userDirectory.findById(e.getKey(), cc -> {
+                    if(cc != null) {
+                        addAuthor(cc).lastActivityTime.set(new Date(last));
+                        saveContacts();
+                    }
+                });
+            }
+        });
+        postToUI(received, new ArrayList<>());
+    }
+    
+    /**
+     * Delivers everything that accumulated since the last EDT pass in one 
+     * go, so a large backlog doesn't flood the EDT with small tasks
+     */
+    private static void deliverToUI() {
+        List<ChatMessage> received;
+        List<Runnable> events;
+        synchronized(uiLock) {
+            received = uiReceived;
+            events = uiEvents;
+            uiReceived = new ArrayList<>();
+            uiEvents = new ArrayList<>();
+            uiScheduled = false;
+        }
+        for(Runnable r : events) {
+            r.run();
+        }
+        if(!received.isEmpty()) {
+            listener.messagesReceived(received);
+        }
+    }
+    
+    private static void updateMessage(ChatMessage m) {
+        ChatContact c = contactCache.findById(m.authorId.get());
+        if(c != null) {
+            c.lastActivityTime.set(new Date());
+            appendMessage(c, m);
+            return;
+        }
+        // a burst from a new author shares a single lookup
+        userDirectory.findById(m.authorId.get(), cc -> {
+            if(cc == null) {
+                // keep the message so it shows up once the author is known
+                String authorId = m.authorId.get();
+                contactsThread.run(() -> messageStore.append(authorId, m));
+                return;
+            }
+            ChatContact known = addAuthor(cc);
+            known.lastActivityTime.set(new Date());
+            appendMessage(known, m);
             saveContacts();        
         });
     }
     
+    /**
+     * Adds an author found in the user directory to the contacts
+     * 
+     * @return the contact in the cache that represents the author
+     */
+    private static ChatContact addAuthor(ChatContact cc) {
+        // the author might be in the address book without an id
+        return contactCache.findOrAdd(cc);
+    }
+    
+    private static void appendMessage(ChatContact c, ChatMessage m) {
+        String id = c.id.get();
+        contactsThread.run(() -> messageStore.append(id, m));
+    }
+    
+    /**
+     * Loads a page of the conversation history from storage
+     * 
+     * @param c the contact whose conversation we're showing
+     * @param before the oldest message we already have or null to fetch the 
+     *      newest messages
+     * @param count the maximum number of messages to fetch
+     * @param callback invoked on the EDT with the messages in chronological 
+     *      order, a page shorter than count means we reached the start of 
+     *      the conversation
+     */
+    public static void fetchMessages(ChatContact c, ChatMessage before, 
+            int count, OnComplete<List<ChatMessage>> callback) {
+        String id = c.id.get();
+        String beforeKey = before == null ? null : 
+            MessageStore.recordKey(before);
+        contactsThread.run(() -> {
+            List<ChatMessage> page = messageStore.loadPage(id, beforeKey, 
+                count);
+            callSerially(() -> callback.completed(page));
+        });
+    }
+    
     public static void closeWebsocketConnection() {
-        if(connection != null) {
-            connection.close();
-            connection = null;
+        acks.flush();
+        reconnector.stop();
+        keepAlive.stop();
+        WebSocket w = connection;
+        connection = null;
+        if(w != null) {
+            w.close();
+            if(connected) {
+                connectionLost();
+            }
         }
+        reconnector.disconnected();
     }
     
+    private static final Object saveContactsLock = new Object();
+    private static boolean saveContactsPending;
+    
+    /**
+     * Writes the contact metadata, messages are stored separately by the 
+     * {@link MessageStore} so this is only needed when a contact changes. 
+     * Multiple calls before the contacts thread gets to the write are 
+     * coalesced to a single write, this can be invoked from any thread
+     */
     public static void saveContacts() {
-        if(contactCache != null && contactsThread != null) {
-            contactsThread.run(() -> {
-                PropertyIndex.storeJSONList("contacts.json", 
-                        contactCache);
-            });
+        if(contactCache == null || contactsThread == null) {
+            return;
+        }
+        synchronized(saveContactsLock) {
+            if(saveContactsPending) {
+                return;
+            }
+            saveContactsPending = true;
         }
+        contactsThread.run(() -> {
+            synchronized(saveContactsLock) {
+                saveContactsPending = false;
+            }
+            PropertyIndex.storeJSONList(CONTACTS_FILE_NAME, 
+                    contactCache.snapshot());
+        });
     }
     
-    private static List<ChatContact> contactCache;
+    private static List<ChatContact> loadContacts() {
+        List<ChatContact> l = new ChatContact().getPropertyIndex().
+            loadJSONList(CONTACTS_FILE_NAME);
+        boolean migrated = false;
+        for(ChatContact c : l) {
+            String id = c.id.get();
+            if(id == null) {
+                continue;
+            }
+            if(c.chats.size() > 0 && !messageStore.exists(id)) {
+                // older versions kept the whole history in contacts.json
+                messageStore.appendAll(id, c.chats.asList());
+                migrated = true;
+            }
+            c.chats.clear();
+            if(messageStore.exists(id)) {
+                ChatMessage m = messageStore.last(id);
+                if(m != null) {
+                    Date last = m.time.get();
+                    if(c.lastActivityTime.get() == null || 
+                            c.lastActivityTime.get().before(last)) {
+                        c.lastActivityTime.set(last);
+                    }
+                }
+            }
+        }
+        if(migrated) {
+            PropertyIndex.storeJSONList(CONTACTS_FILE_NAME, l);
+        }
+        return l;
+    }
+    
+    private static ContactRegistry contactCache;
     private static EasyThread contactsThread;
+    
+    private static final String CONTACTS_IMPORTED = "ContactsImported";
+    private static final String CONTACTS_IMPORT_OFFSET = 
+        "ContactsImportOffset";
+    private static final int IMPORT_PAGE_SIZE = 100;
+    private static final int PHOTO_WORKERS = 2;
+    private static final List<OnComplete<List<ChatContact>>> 
+        importListeners = new ArrayList<>();
+    private static EasyThread importThread;
+    private static EasyThread[] photoWorkers;
+    private static int nextPhotoWorker;
+    private static int importProgress;
+    private static boolean importSavePending;
+    
+    /**
+     * Returns the contacts, the callback is invoked on the EDT with the 
+     * contacts we know about. While the address book is imported it's 
+     * invoked again with every page of newly imported contacts
+     * 
+     * @param contactsCallback receives the contacts
+     */
     public static void fetchContacts(
             OnComplete<List<ChatContact>> contactsCallback) {
-        if(contactsThread == null) {
-            contactsThread = EasyThread.start("Contacts Thread");
-            contactsThread.run(() -> fetchContacts(contactsCallback));
-            return;
+        List<ChatContact> known;
+        boolean importing;
+        synchronized(importListeners) {
+            known = contactCache.snapshot();
+            importing = !Preferences.get(CONTACTS_IMPORTED, false);
+            if(importing) {
+                importListeners.add(contactsCallback);
+            }
+        }
+        callSerially(() -> contactsCallback.completed(known));
+        if(importing) {
+            startImport();
+        }
+    }
+    
+    private static void startImport() {
+        synchronized(importListeners) {
+            if(importThread != null) {
+                return;
+            }
+            importThread = EasyThread.start("Contacts Import");
+            photoWorkers = new EasyThread[PHOTO_WORKERS];
+            for(int iter = 0 ; iter < PHOTO_WORKERS ; iter++) {
+                photoWorkers[iter] = EasyThread.start("Contact Photos " + 
+                    iter);
+            }
         }
-        if(!contactsThread.isThisIt()) {
-            contactsThread.run(() -> fetchContacts(contactsCallback));
+        importThread.run(() -> importContacts());
+    }
+    
+    /**
+     * Reads the address book a page at a time, every page is added to the 
+     * registry and published to the UI before the next one is read. The 
+     * offset is saved with the contacts so an interrupted import resumes 
+     * where it stopped
+     */
+    private static void importContacts() {
+        String[] ids = Display.getInstance().getAllContacts(true);
+        if(ids == null) {
+            ids = new String[0];
+        }
+        int offset = Preferences.get(CONTACTS_IMPORT_OFFSET, 0);
+        while(offset < ids.length) {
+            int end = Math.min(ids.length, offset + IMPORT_PAGE_SIZE);
+            List<ChatContact> page = new ArrayList<>();
+            for(int iter = offset ; iter < end ; iter++) {
+                ChatContact cc = importContact(ids[iter]);
+                if(cc != null) {
+                    page.add(cc);
+                }
+            }
+            List<OnComplete<List<ChatContact>>> listeners;
+            synchronized(importListeners) {
+                for(ChatContact cc : page) {
+                    contactCache.add(cc);
+                }
+                listeners = new ArrayList<>(importListeners);
+            }
+            for(ChatContact cc : page) {
+                importPhoto(cc);
+            }
+            saveImportProgress(end);
+            if(!page.isEmpty()) {
+                callSerially(() -> {
+                    for(OnComplete<List<ChatContact>> l : listeners) {
+                        l.completed(page);
+                    }
+                });
+            }
+            offset = end;
+        }
+        contactsThread.run(() -> {
+            Preferences.set(CONTACTS_IMPORTED, true);
+            Preferences.delete(CONTACTS_IMPORT_OFFSET);
+            synchronized(importListeners) {
+                importListeners.clear();
+            }
+        });
+    }
+    
+    private static ChatContact importContact(String id) {
+        if(contactCache.findByLocalId(id) != null) {
+            // imported before the import was interrupted
+            return null;
+        }
+        Contact c = Display.getInstance().getContactById(id, true, false, 
+            true, false, false);
+        if(c == null || c.getPrimaryPhoneNumber() == null) {
+            return null;
+        }
+        ChatContact known = contactCache.findByPhone(
+            c.getPrimaryPhoneNumber());
+        if(known != null) {
+            if(known.localId.get() == null) {
+                known.localId.set(id);
+            }
+            return null;
+        }
+        return new ChatContact().
+            localId.set(id).
+            phone.set(c.getPrimaryPhoneNumber()).
+            name.set(c.getDisplayName());
+    }
+    
+    /**
+     * Photos are read and encoded by a small pool of workers so they don't 
+     * hold back the contact pages
+     */
+    private static void importPhoto(ChatContact cc) {
+        String id = cc.localId.get();
+        EasyThread worker = photoWorkers[nextPhotoWorker % PHOTO_WORKERS];
+        nextPhotoWorker++;
+        worker.run(() -> {
+            Contact c = Display.getInstance().getContactById(id, false, true,
+                false, false, false);
+            if(c != null && c.getPhoto() != null) {
+                AvatarLoader.savePhoto(cc, 
+                    EncodedImage.createFromImage(c.getPhoto(), true));
+            }
+        });
+    }
+    
+    /**
+     * Writes the contacts and the import offset together, pages imported 
+     * while a write is pending are included in that write
+     */
+    private static void saveImportProgress(int offset) {
+        synchronized(importListeners) {
+            importProgress = offset;
+            if(importSavePending) {
+                return;
+            }
+            importSavePending = true;
+        }
+        contactsThread.run(() -> {
+            int progress;
+            synchronized(importListeners) {
+                importSavePending = false;
+                progress = importProgress;
+            }
+            PropertyIndex.storeJSONList(CONTACTS_FILE_NAME, 
+                contactCache.snapshot());
+            Preferences.set(CONTACTS_IMPORT_OFFSET, progress);
+        });
+    }
+    
+    /**
+     * Makes sure the contact has a server id, a contact we already resolved 
+     * under the same phone number is reused before asking the server
+     * 
+     * @param c the contact
+     * @param callback invoked with the contact or null if the contact isn't 
+     *      registered
+     */
+    public static void resolveContact(ChatContact c, 
+            OnComplete<ChatContact> callback) {
+        if(c.id.get() != null) {
+            callback.completed(c);
             return;
         }
-        if(contactCache != null) {
-            callSeriallyOnIdle(() -> 
-                contactsCallback.completed(contactCache));
+        ChatContact known = contactCache.findByPhone(c.phone.get());
+        if(known != null && known.id.get() != null) {
+            c.id.set(known.id.get());
+            saveContacts();
+            callback.completed(c);
             return;
         }
-        if(existsInStorage("contacts.json")) {
-            contactCache = new ChatContact().
-                getPropertyIndex().
-                loadJSONList("contacts.json");
-            
-            callSerially(() -> contactsCallback.completed(contactCache));
-            for(ChatContact c : contactCache) {
-                if(existsInStorage(c.name.get() + ".jpg")) {
-                    String f = c.name.get() + ".jpg";
-                    try (InputStream is = createStorageInputStream(f)) {
-                        c.photo.set(EncodedImage.create(is));
-                    } catch(IOException err) {
-                        Log.e(err);
-                    }
+        userDirectory.findByPhone(c.phone.get(), contact -> {
+            if(contact == null) {
+                callback.completed(null);
+                return;
+            }
+            c.id.set(contact.id.get());
+            saveContacts();
+            callback.completed(c);
+        });
+    }
+    
+    /**
+     * Resolves the server ids of the contacts that don't have one yet with 
+     * bulk lookups, so picking one of them later doesn't need a request
+     * 
+     * @param contacts the contacts to resolve
+     */
+    public static void discoverContacts(List<ChatContact> contacts) {
+        Map<String, List<ChatContact>> byPhone = new HashMap<>();
+        for(ChatContact c : contacts) {
+            if(c.id.get() == null && c.phone.get() != null) {
+                List<ChatContact> l = byPhone.get(c.phone.get());
+                if(l == null) {
+                    l = new ArrayList<>();
+                    byPhone.put(c.phone.get(), l);
                 }
+                l.add(c);
             }
+        }
+        if(byPhone.isEmpty()) {
             return;
         }
-        
-        Contact[] contacts = Display.getInstance().getAllContacts(true,
-            true, false, true, false, false);
-        ArrayList<ChatContact> l = new ArrayList<>();
-        for(Contact c : contacts) {
-            ChatContact cc = new ChatContact().
-                phone.set(c.getPrimaryPhoneNumber()).
-                name.set(c.getDisplayName());
-            l.add(cc);
-            callSeriallyOnIdle(() -> {
-                cc.photo.set(c.getPhoto());
-                if(cc.photo.get() != null) {
-                    contactsThread.run(() -> {
-                        String f = cc.name.get() + ".jpg";
-                        try(OutputStream os = 
-                                createStorageOutputStream(f)) {
-                            EncodedImage img = EncodedImage.
-                                createFromImage(cc.photo.get(), true);
-                            os.write(img.getImageData());
-                        } catch(IOException err) {
-                            Log.e(err);
-                        }
-                    });
+        userDirectory.findByPhones(new ArrayList<>(byPhone.keySet()), 
+                users -> {
+            if(users.isEmpty()) {
+                return;
+            }
+            for(Map.Entry<String, ChatContact> e : users.entrySet()) {
+                for(ChatContact c : byPhone.get(e.getKey())) {
+                    c.id.set(e.getValue().id.get());
                 }
-            });
-        }
-        
-        PropertyIndex.storeJSONList("contacts.json", l);
-        callSerially(() -> contactsCallback.completed(l));
+            }
+            saveContacts();
+        });
+    }
+    
+    /**
+     * Bulk lookup of registered users by the SHA-256 of their normalized 
+     * phone, the response maps every registered hash to its user
+     */
+    private static void discover(List<String> hashes, 
+            OnComplete<Map<String, ChatContact>> result) {
+        fetchUsers("user/discover", "hashes", hashes, result);
     }
     
-    public static void findRegisteredUser(String phone, 
-            OnComplete<ChatContact> resultCallback) {
-        get("user/findRegisteredUser").
-            queryParam("phone", phone).
-            fetchAsPropertyList(res -> {
-                List l = res.getResponseData();
-                if(l.size() == 0) {
-                    resultCallback.completed(null);
+    /**
+     * Bulk lookup of users by id, the response maps every id that belongs 
+     * to a registered user to that user
+     */
+    private static void fetchUsersById(List<String> ids, 
+            OnComplete<Map<String, ChatContact>> result) {
+        fetchUsers("user/findByIds", "ids", ids, result);
+    }
+    
+    private static void fetchUsers(String path, String field, 
+            List<String> keys, OnComplete<Map<String, ChatContact>> result) {
+        if(keys.isEmpty()) {
+            result.completed(new HashMap<>());
+            return;
+        }
+        StringBuilder arr = new StringBuilder("[");
+        for(String k : keys) {
+            if(arr.length() > 1) {
+                arr.append(',');
+            }
+            arr.append('"').append(k).append('"');
+        }
+        arr.append(']');
+        post(path).
+            body("{\"" + field + "\":" + arr + "}").
+            onError(e -> {
+                e.consume();
+                result.completed(null);
+            }).
+            fetchAsJsonMap(res -> {
+                if(res.getResponseCode() != 200) {
+                    result.completed(null);
                     return;
                 }
-                resultCallback.completed((ChatContact)l.get(0));
-            }, ChatContact.class);
-    }
-    
-    public static void findRegisteredUserById(String id, 
-            OnComplete<ChatContact> resultCallback) {
-        get("user/findRegisteredUserById").
-            queryParam("id", id).
-            fetchAsPropertyList(res -> {
-                List l = res.getResponseData();
-                if(l.size() == 0) {
-                    resultCallback.completed(null);
-                    return;
+                Map<String, ChatContact> users = new HashMap<>();
+                Map data = res.getResponseData();
+                for(Object k : data.keySet()) {
+                    Object v = data.get(k);
+                    if(v instanceof Map) {
+                        ChatContact c = new ChatContact();
+                        c.getPropertyIndex().populateFromMap((Map)v);
+                        users.put((String)k, c);
+                    }
                 }
-                resultCallback.completed((ChatContact)l.get(0));
-            }, ChatContact.class);
+                result.completed(users);
+            });
     }
 
-    public static void fetchChatList(
-            OnComplete<List<ChatContact>> contactsCallback) {
-        fetchContacts(cl -> {
-            List<ChatContact> response = new ArrayList<>();
-            for(ChatContact c : cl) {
-                if(c.lastActivityTime.get() != null) {
-                    response.add(c);
-                }
-            }
-            Collections.sort(response, 
-                (ChatContact o1, ChatContact o2) -> 
-                    (int)(o1.lastActivityTime.get().getTime() - 
-                        o2.lastActivityTime.get().getTime()));
-            contactsCallback.completed(response);
-        });
+    private static ChatListModel chatList;
+    
+    /**
+     * The conversations ordered by their last activity, the model updates 
+     * itself as messages arrive so it only needs to be bound once
+     * 
+     * @return the chat list model, this must be invoked on the EDT
+     */
+    public static ChatListModel chatList() {
+        if(chatList == null) {
+            chatList = new ChatListModel(contactCache);
+        }
+        return chatList;
     }
     
+    /**
+     * Acknowledges delivery of the message, acknowledgements are batched 
+     * and sent together
+     * 
+     * @param messageId the id of the received message
+     */
     public static void ackMessage(String messageId) {
-        post("user/ackMessage").
-            body(messageId).fetchAsString(c -> {});
+        acks.add(messageId);
+    }
+    
+    private static void sendAcks(List<String> ids) {
+        if(connected && binary) {
+            sendFrame(WireCodec.encodeAck(ids));
+            return;
+        }
+        StringBuilder arr = new StringBuilder("[");
+        for(String id : ids) {
+            if(arr.length() > 1) {
+                arr.append(',');
+            }
+            arr.append('"').append(id).append('"');
+        }
+        arr.append(']');
+        WebSocket w = connection;
+        if(connected && w != null) {
+            keepAlive.traffic();
+            w.send("{\"t\":\"ack\",\"ids\":" + arr + "}");
+            return;
+        }
+        post("user/ackMessages").
+            body(arr.toString()).fetchAsString(c -> {});
     }
 
     public static void updatePushKey(String key) {
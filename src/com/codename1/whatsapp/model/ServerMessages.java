@@ -5,7 +5,8 @@ import java.util.List;
 public interface ServerMessages {
     public void connected();
     public void disconnected();
-    public void messageReceived(ChatMessage m);
+    public void messagesReceived(List<ChatMessage> messages);
     public void userTyping(String contactId);
+    public void userStoppedTyping(String contactId);
     public void messageViewed(String messageId, List<String> userIds);
 }
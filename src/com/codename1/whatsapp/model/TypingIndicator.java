@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Codename One through http://www.codenameone.com/ if you
+ * need additional information or have any questions.
+ */
+
+
+package com.codename1.whatsapp.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Typing notifications in both directions. We tell a contact we started 
+ * typing on the first keystroke, repeat it at most once per refresh period 
+ * while typing continues and tell them we stopped once the input is cleared 
+ * or after a few idle seconds. Incoming notifications are kept per contact, 
+ * only a change of state reaches the UI and a contact that wasn't refreshed 
+ * in time expires on its own in case the stop notification was lost.
+ */
+public class TypingIndicator {
+    private static final long REFRESH = 4000;
+    private static final long IDLE = 5000;
+    private static final long EXPIRY = 7000;
+
+    /**
+     * Receives the typing state of a contact
+     */
+    public interface Callback {
+        void typing(String contactId, boolean typing);
+    }
+
+    private final Timer timer;
+    private final Callback sender;
+    private final Callback listener;
+
+    private String typingTo;
+    private long lastKeystroke;
+    private long lastSent;
+    private TimerTask idleTask;
+
+    private final Map<String, Long> expiry = new HashMap<>();
+    private TimerTask expiryTask;
+
+    /**
+     * @param timer the timer for the idle and expiry checks
+     * @param sender sends our typing state to a contact, might be invoked 
+     *      on the timer thread
+     * @param listener invoked when the typing state of a contact changed, 
+     *      might be invoked on the timer thread
+     */
+    public TypingIndicator(Timer timer, Callback sender, Callback listener) {
+        this.timer = timer;
+        this.sender = sender;
+        this.listener = listener;
+    }
+
+    /**
+     * Invoked for every change of the input, this is cheap as nothing is 
+     * sent unless the state changes or the refresh period passed
+     *
+     * @param contactId the contact we're writing to
+     * @param typing false if the input is empty
+     */
+    public void typed(String contactId, boolean typing) {
+        String stopped = null;
+        boolean send = false;
+        synchronized(this) {
+            long now = System.currentTimeMillis();
+            if(typingTo != null && (!typing || !typingTo.equals(contactId))) {
+                stopped = typingTo;
+                typingTo = null;
+                cancelIdle();
+            }
+            if(typing) {
+                lastKeystroke = now;
+                if(typingTo == null || now - lastSent >= REFRESH) {
+                    typingTo = contactId;
+                    lastSent = now;
+                    send = true;
+                }
+                if(idleTask == null) {
+                    scheduleIdle(IDLE);
+                }
+            }
+        }
+        if(stopped != null) {
+            sender.typing(stopped, false);
+        }
+        if(send) {
+            sender.typing(contactId, true);
+        }
+    }
+
+    /**
+     * Invoked with a typing notification from a contact
+     */
+    public void received(String contactId, boolean typing) {
+        boolean changed;
+        synchronized(this) {
+            if(typing) {
+                changed = expiry.put(contactId, 
+                    System.currentTimeMillis() + EXPIRY) == null;
+                if(expiryTask == null) {
+                    scheduleExpiry(EXPIRY);
+                }
+            } else {
+                changed = expiry.remove(contactId) != null;
+            }
+        }
+        if(changed) {
+            listener.typing(contactId, typing);
+        }
+    }
+
+    /**
+     * A message from the contact means they stopped typing
+     */
+    public void messageReceived(String contactId) {
+        received(contactId, false);
+    }
+
+    public synchronized boolean isTyping(String contactId) {
+        return expiry.containsKey(contactId);
+    }
+
+    /**
+     * Forgets both directions when the connection is lost, the contacts 
+     * that were typing are reported as stopped
+     */
+    public void disconnected() {
+        List<String> stopped;
+        synchronized(this) {
+            typingTo = null;
+            cancelIdle();
+            stopped = new ArrayList<>(expiry.keySet());
+            expiry.clear();
+            if(expiryTask != null) {
+                expiryTask.cancel();
+                expiryTask = null;
+            }
+        }
+        for(String id : stopped) {
+            listener.typing(id, false);
+        }
+    }
+
+    private void cancelIdle() {
+        if(idleTask != null) {
+            idleTask.cancel();
+            idleTask = null;
+        }
+    }
+
+    private void scheduleIdle(long delay) {
+        idleTask = new TimerTask() {
+            @Override
+            public void run() {
+                idle(this);
+            }
+        };
+        timer.schedule(idleTask, delay);
+    }
+
+    private void idle(TimerTask current) {
+        String stopped;
+        synchronized(this) {
+            if(idleTask != current) {
+                return;
+            }
+            long idle = System.currentTimeMillis() - lastKeystroke;
+            if(idle < IDLE) {
+                // keystrokes only move the deadline, the task is rescheduled 
+                // once instead of on every keystroke
+                scheduleIdle(IDLE - idle);
+                return;
+            }
+            idleTask = null;
+            stopped = typingTo;
+            typingTo = null;
+        }
+        if(stopped != null) {
+            sender.typing(stopped, false);
+        }
+    }
+
+    private void scheduleExpiry(long delay) {
+        expiryTask = new TimerTask() {
+            @Override
+            public void run() {
+                expire(this);
+            }
+        };
+        timer.schedule(expiryTask, delay);
+    }
+
+    /**
+     * One task serves all contacts, it runs at the earliest expiry
+     */
+    private void expire(TimerTask current) {
+        List<String> expired = new ArrayList<>();
+        synchronized(this) {
+            if(expiryTask != current) {
+                return;
+            }
+            expiryTask = null;
+            long now = System.currentTimeMillis();
+            long next = Long.MAX_VALUE;
+            Iterator<Map.Entry<String, Long>> i = expiry.entrySet().iterator();
+            while(i.hasNext()) {
+                Map.Entry<String, Long> e = i.next();
+                if(e.getValue() <= now) {
+                    expired.add(e.getKey());
+                    i.remove();
+                } else {
+                    next = Math.min(next, e.getValue());
+                }
+            }
+            if(!expiry.isEmpty()) {
+                scheduleExpiry(next - now);
+            }
+        }
+        for(String id : expired) {
+            listener.typing(id, false);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Codename One through http://www.codenameone.com/ if you
+ * need additional information or have any questions.
+ */
+
+package com.codename1.whatsapp.model;
+
+import com.codename1.io.FileSystemStorage;
+import com.codename1.io.JSONParser;
+import com.codename1.io.Log;
+import com.codename1.io.Util;
+import com.codename1.util.EasyThread;
+import com.codename1.util.OnComplete;
+import com.codename1.util.StringUtil;
+import com.codename1.util.regex.StringReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches which phone numbers and ids belong to registered users. Phones are
+ * looked up in bulk by their SHA-256 hash so the numbers themselves aren't
+ * sent, answers are kept for a while and persisted, and concurrent lookups
+ * of the same key share a single request.
+ */
+public class UserDirectory {
+    private static final long TTL = 24 * 60 * 60000L;
+    private static final long NOT_REGISTERED_TTL = 60 * 60000L;
+    private static final int MAX_BATCH = 500;
+    private static final String PHONE = "p:";
+    private static final String ID = "i:";
+
+    /**
+     * Looks up users on the server
+     */
+    public interface Fetcher {
+        /**
+         * @param keys phone hashes or user ids
+         * @param result invoked with the users found by key or with null
+         *      if the request failed
+         */
+        void fetch(List<String> keys,
+            OnComplete<Map<String, ChatContact>> result);
+    }
+
+    private static class Entry {
+        ChatContact user;
+        long expires;
+    }
+
+    private final FileSystemStorage fs = FileSystemStorage.getInstance();
+    private final String file;
+    private final EasyThread io;
+    private final Fetcher byPhoneHash;
+    private final Fetcher byId;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, List<OnComplete<ChatContact>>> inFlight =
+        new HashMap<>();
+    private boolean savePending;
+
+    /**
+     * @param file the path of the cache in the file system
+     * @param io the thread on which the cache is written
+     * @param byPhoneHash bulk lookup of users by phone hash
+     * @param byId bulk lookup of users by id
+     */
+    public UserDirectory(String file, EasyThread io, Fetcher byPhoneHash,
+            Fetcher byId) {
+        this.file = file;
+        this.io = io;
+        this.byPhoneHash = byPhoneHash;
+        this.byId = byId;
+        load();
+    }
+
+    public static String hashPhone(String phone) {
+        String p = ContactRegistry.normalizePhone(phone);
+        if(p == null) {
+            return null;
+        }
+        return Sha256.hex(p);
+    }
+
+    /**
+     * Finds the users registered with the given phones
+     *
+     * @param phones the phone numbers
+     * @param callback invoked with the registered users keyed by the phone
+     *      as given, on the thread that completed the last lookup
+     */
+    public void findByPhones(List<String> phones,
+            OnComplete<Map<String, ChatContact>> callback) {
+        Map<String, String> keys = new HashMap<>();
+        for(String phone : phones) {
+            String hash = hashPhone(phone);
+            if(hash != null) {
+                keys.put(phone, hash);
+            }
+        }
+        resolve(PHONE, keys, byPhoneHash, callback);
+    }
+
+    public void findByPhone(String phone, OnComplete<ChatContact> callback) {
+        List<String> l = new ArrayList<>();
+        l.add(phone);
+        findByPhones(l, m -> callback.completed(m.get(phone)));
+    }
+
+    public void findById(String id, OnComplete<ChatContact> callback) {
+        Map<String, String> keys = new HashMap<>();
+        keys.put(id, id);
+        resolve(ID, keys, byId, m -> callback.completed(m.get(id)));
+    }
+
+    /**
+     * Resolves the keys from the cache, joins lookups already in flight and
+     * fetches the rest in batches
+     *
+     * @param keys maps the key the caller used to the key sent to the server
+     */
+    private void resolve(String prefix, Map<String, String> keys,
+            Fetcher fetcher, OnComplete<Map<String, ChatContact>> callback) {
+        Map<String, ChatContact> result = new HashMap<>();
+        int[] remaining = {keys.size()};
+        List<String> toFetch = new ArrayList<>();
+        boolean waiting = false;
+        long now = System.currentTimeMillis();
+        synchronized(this) {
+            for(Map.Entry<String, String> k : keys.entrySet()) {
+                String callerKey = k.getKey();
+                String cacheKey = prefix + k.getValue();
+                Entry e = entries.get(cacheKey);
+                if(e != null && e.expires > now) {
+                    synchronized(result) {
+                        if(e.user != null) {
+                            result.put(callerKey, copy(e.user));
+                        }
+                        remaining[0]--;
+                    }
+                    continue;
+                }
+                waiting = true;
+                List<OnComplete<ChatContact>> waiters =
+                    inFlight.get(cacheKey);
+                if(waiters == null) {
+                    waiters = new ArrayList<>();
+                    inFlight.put(cacheKey, waiters);
+                    toFetch.add(k.getValue());
+                }
+                waiters.add(user -> {
+                    boolean done;
+                    synchronized(result) {
+                        if(user != null) {
+                            result.put(callerKey, user);
+                        }
+                        remaining[0]--;
+                        done = remaining[0] == 0;
+                    }
+                    if(done) {
+                        callback.completed(result);
+                    }
+                });
+            }
+        }
+        if(!waiting) {
+            // everything was cached
+            callback.completed(result);
+            return;
+        }
+        for(int iter = 0 ; iter < toFetch.size() ; iter += MAX_BATCH) {
+            List<String> batch = new ArrayList<>(toFetch.subList(iter,
+                Math.min(toFetch.size(), iter + MAX_BATCH)));
+            fetcher.fetch(batch, users -> completed(prefix, batch, users));
+        }
+    }
+
+    private void completed(String prefix, List<String> batch,
+            Map<String, ChatContact> users) {
+        List<List<OnComplete<ChatContact>>> waiters = new ArrayList<>();
+        List<ChatContact> found = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized(this) {
+            for(String key : batch) {
+                ChatContact user = users == null ? null : users.get(key);
+                if(users != null) {
+                    // failures aren't cached so they're retried next time
+                    Entry e = new Entry();
+                    e.user = user;
+                    e.expires = now + (user == null ? NOT_REGISTERED_TTL :
+                        TTL);
+                    entries.put(prefix + key, e);
+                }
+                waiters.add(inFlight.remove(prefix + key));
+                found.add(user);
+            }
+        }
+        if(users != null) {
+            save();
+        }
+        for(int iter = 0 ; iter < waiters.size() ; iter++) {
+            if(waiters.get(iter) != null) {
+                for(OnComplete<ChatContact> w : waiters.get(iter)) {
+                    w.completed(copy(found.get(iter)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Callers get their own copy of a user, they add it to the contacts and 
+     * change it and those changes mustn't reach the cache
+     */
+    private static ChatContact copy(ChatContact c) {
+        if(c == null) {
+            return null;
+        }
+        ChatContact result = new ChatContact();
+        result.getPropertyIndex().populateFromMap(
+            c.getPropertyIndex().toMapRepresentation());
+        return result;
+    }
+
+    private void save() {
+        synchronized(this) {
+            if(savePending) {
+                return;
+            }
+            savePending = true;
+        }
+        io.run(() -> {
+            StringBuilder sb = new StringBuilder();
+            long now = System.currentTimeMillis();
+            synchronized(this) {
+                savePending = false;
+                for(Map.Entry<String, Entry> e : entries.entrySet()) {
+                    if(e.getValue().expires <= now) {
+                        continue;
+                    }
+                    sb.append(e.getKey()).append('\t').
+                        append(e.getValue().expires).append('\t');
+                    if(e.getValue().user != null) {
+                        sb.append(e.getValue().user.getPropertyIndex().
+                            toJSON());
+                    }
+                    sb.append('\n');
+                }
+            }
+            try(OutputStream os = fs.openOutputStream(file)) {
+                os.write(sb.toString().getBytes("UTF-8"));
+            } catch(IOException err) {
+                Log.e(err);
+            }
+        });
+    }
+
+    private void load() {
+        if(!fs.exists(file)) {
+            return;
+        }
+        try(InputStream is = fs.openInputStream(file)) {
+            String data = Util.readToString(is, "UTF-8");
+            JSONParser jp = new JSONParser();
+            JSONParser.setUseBoolean(true);
+            JSONParser.setUseLongs(true);
+            long now = System.currentTimeMillis();
+            for(String line : StringUtil.tokenize(data, '\n')) {
+                List<String> cols = StringUtil.tokenize(line, '\t');
+                if(cols.size() < 2) {
+                    continue;
+                }
+                Entry e = new Entry();
+                e.expires = Long.parseLong(cols.get(1));
+                if(e.expires <= now) {
+                    continue;
+                }
+                if(cols.size() > 2) {
+                    ChatContact c = new ChatContact();
+                    c.getPropertyIndex().populateFromMap(
+                        jp.parseJSON(new StringReader(cols.get(2))));
+                    e.user = c;
+                }
+                entries.put(cols.get(0), e);
+            }
+        } catch(IOException | NumberFormatException err) {
+            Log.e(err);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2012, Codename One and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Codename One designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Codename One through http://www.codenameone.com/ if you
+ * need additional information or have any questions.
+ */
+
+package com.codename1.whatsapp.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of the frames we exchange with the server, used
+ * once both sides agreed on it in the init handshake. A frame starts with
+ * its type, a message is a bit mask of the fields it carries followed by
+ * the fields in a fixed order. Control frames decode to the same maps the
+ * JSON frames produce so the rest of the client handles both the same way.
+ */
+public class WireCodec {
+    public static final int VERSION = 2;
+
+    private static final byte MESSAGE = 1;
+    private static final byte PING = 2;
+    private static final byte ACK = 3;
+    private static final byte SYNC = 4;
+    private static final byte SYNC_ACK = 5;
+    private static final byte PAGE = 6;
+
+    private static final int F_ID = 1;
+    private static final int F_LOCAL_ID = 2;
+    private static final int F_AUTHOR_ID = 4;
+    private static final int F_AUTHOR_PHONE = 8;
+    private static final int F_SENT_TO = 16;
+    private static final int F_TIME = 32;
+    private static final int F_BODY = 64;
+    private static final int F_ATTACHMENTS = 128;
+    private static final int F_VIEWED_BY = 256;
+    private static final int F_TYPING = 512;
+    private static final int F_TYPING_STOPPED = 1024;
+
+    private WireCodec() {
+    }
+
+    public static byte[] encodeMessage(ChatMessage m) {
+        return encode(out -> {
+            out.writeByte(MESSAGE);
+            writeMessage(out, m);
+        });
+    }
+
+    public static byte[] encodePing() {
+        return new byte[] {PING};
+    }
+
+    public static byte[] encodeAck(List<String> ids) {
+        return encode(out -> {
+            out.writeByte(ACK);
+            out.writeInt(ids.size());
+            for(String id : ids) {
+                out.writeUTF(id);
+            }
+        });
+    }
+
+    public static byte[] encodeSync(String cursor, int max) {
+        return encode(out -> {
+            out.writeByte(SYNC);
+            writeNullable(out, cursor);
+            out.writeInt(max);
+        });
+    }
+
+    public static byte[] encodeSyncAck(String cursor) {
+        return encode(out -> {
+            out.writeByte(SYNC_ACK);
+            out.writeUTF(cursor);
+        });
+    }
+
+    /**
+     * Decodes a frame received from the server. Ack, sync and sync ack 
+     * frames only go from the client to the server so they are rejected 
+     * like any other unknown type.
+     *
+     * @param data the binary frame
+     * @return a {@link ChatMessage} or a map with a {@code t} entry for
+     *      protocol frames
+     */
+    public static Object decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(data));
+        byte type = in.readByte();
+        Map<String, Object> frame = new HashMap<>();
+        switch(type) {
+            case MESSAGE:
+                return readMessage(in);
+            case PING:
+                frame.put("t", "ping");
+                return frame;
+            case PAGE: {
+                frame.put("t", "page");
+                frame.put("cursor", readNullable(in));
+                frame.put("more", in.readBoolean());
+                int count = in.readInt();
+                
+                // every message takes at least its two field bytes
+                checkLength(in, count * 2L);
+                List<ChatMessage> messages = new ArrayList<>(count);
+                for(int iter = 0 ; iter < count ; iter++) {
+                    messages.add(readMessage(in));
+                }
+                frame.put("messages", messages);
+                return frame;
+            }
+            default:
+                // ACK, SYNC and SYNC_ACK are never sent by the server
+                throw new IOException("Unknown frame type " + type);
+        }
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] encode(Writer w) {
+        try {
+            ByteArrayOutputStream bo = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bo);
+            w.write(out);
+            out.flush();
+            return bo.toByteArray();
+        } catch(IOException err) {
+            // the in memory stream doesn't fail, this is an id or another 
+            // short field over the 64k limit of writeUTF
+            throw new IllegalArgumentException("Can't encode frame: " + 
+                err);
+        }
+    }
+
+    private static void writeMessage(DataOutputStream out, ChatMessage m)
+            throws IOException {
+        int fields = 0;
+        fields |= m.id.get() != null ? F_ID : 0;
+        fields |= m.localId.get() != null ? F_LOCAL_ID : 0;
+        fields |= m.authorId.get() != null ? F_AUTHOR_ID : 0;
+        fields |= m.authorPhone.get() != null ? F_AUTHOR_PHONE : 0;
+        fields |= m.sentTo.get() != null ? F_SENT_TO : 0;
+        fields |= m.time.get() != null ? F_TIME : 0;
+        fields |= m.body.get() != null ? F_BODY : 0;
+        fields |= m.attachments.size() > 0 ? F_ATTACHMENTS : 0;
+        fields |= m.viewedBy.size() > 0 ? F_VIEWED_BY : 0;
+        if(m.typing.get() != null) {
+            fields |= m.typing.getBoolean() ? F_TYPING : F_TYPING_STOPPED;
+        }
+        out.writeShort(fields);
+        if((fields & F_ID) != 0) {
+            out.writeUTF(m.id.get());
+        }
+        if((fields & F_LOCAL_ID) != 0) {
+            out.writeUTF(m.localId.get());
+        }
+        if((fields & F_AUTHOR_ID) != 0) {
+            out.writeUTF(m.authorId.get());
+        }
+        if((fields & F_AUTHOR_PHONE) != 0) {
+            out.writeUTF(m.authorPhone.get());
+        }
+        if((fields & F_SENT_TO) != 0) {
+            out.writeUTF(m.sentTo.get());
+        }
+        if((fields & F_TIME) != 0) {
+            out.writeLong(m.time.get().getTime());
+        }
+        if((fields & F_BODY) != 0) {
+            writeLongString(out, m.body.get());
+        }
+        if((fields & F_ATTACHMENTS) != 0) {
+            out.writeShort(m.attachments.size());
+            for(Map.Entry<String, String> e : m.attachments) {
+                writeLongString(out, e.getKey());
+                writeLongString(out, e.getValue());
+            }
+        }
+        if((fields & F_VIEWED_BY) != 0) {
+            List<String> l = m.viewedBy.asList();
+            out.writeShort(l.size());
+            for(String s : l) {
+                out.writeUTF(s);
+            }
+        }
+    }
+
+    private static ChatMessage readMessage(DataInputStream in)
+            throws IOException {
+        ChatMessage m = new ChatMessage();
+        int fields = in.readUnsignedShort();
+        if((fields & F_ID) != 0) {
+            m.id.set(in.readUTF());
+        }
+        if((fields & F_LOCAL_ID) != 0) {
+            m.localId.set(in.readUTF());
+        }
+        if((fields & F_AUTHOR_ID) != 0) {
+            m.authorId.set(in.readUTF());
+        }
+        if((fields & F_AUTHOR_PHONE) != 0) {
+            m.authorPhone.set(in.readUTF());
+        }
+        if((fields & F_SENT_TO) != 0) {
+            m.sentTo.set(in.readUTF());
+        }
+        if((fields & F_TIME) != 0) {
+            m.time.set(new Date(in.readLong()));
+        }
+        if((fields & F_BODY) != 0) {
+            m.body.set(readLongString(in));
+        }
+        if((fields & F_ATTACHMENTS) != 0) {
+            int count = in.readUnsignedShort();
+            for(int iter = 0 ; iter < count ; iter++) {
+                m.attachments.put(readLongString(in), readLongString(in));
+            }
+        }
+        if((fields & F_VIEWED_BY) != 0) {
+            int count = in.readUnsignedShort();
+            for(int iter = 0 ; iter < count ; iter++) {
+                m.viewedBy.add(in.readUTF());
+            }
+        }
+        if((fields & F_TYPING) != 0) {
+            m.typing.set(true);
+        } else if((fields & F_TYPING_STOPPED) != 0) {
+            m.typing.set(false);
+        }
+        return m;
+    }
+
+    private static void writeNullable(DataOutputStream out, String s)
+            throws IOException {
+        out.writeBoolean(s != null);
+        if(s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readNullable(DataInputStream in)
+            throws IOException {
+        if(in.readBoolean()) {
+            return in.readUTF();
+        }
+        return null;
+    }
+
+    /**
+     * Message bodies and attachments can exceed the 64k limit of writeUTF
+     */
+    private static void writeLongString(DataOutputStream out, String s)
+            throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readLongString(DataInputStream in)
+            throws IOException {
+        int length = in.readInt();
+        checkLength(in, length);
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    /**
+     * Rejects a length prefix the frame can't hold before anything is 
+     * allocated for it, available() is exact since frames are decoded 
+     * from a byte array
+     */
+    private static void checkLength(DataInputStream in, long length)
+            throws IOException {
+        if(length < 0 || length > in.available()) {
+            throw new IOException("Invalid length " + length);
+        }
+    }
+}